@@ -0,0 +1,55 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.codec.embedder.AbstractCodecEmbedder;
+
+
+/**
+ * Runs a server pipeline without a socket.
+ * <p>Messages offered are sent upstream as if read from a connection;
+ * messages written by the pipeline are collected and can be polled.
+ *
+ * @author Keith Webster Johnston.
+ */
+class PipelineEmbedder
+    extends
+        AbstractCodecEmbedder<Object> {
+
+
+    /**
+     * Constructor.
+     *
+     * @param handlers The pipeline's handlers, socket end first.
+     */
+    PipelineEmbedder(final ChannelHandler... handlers) {
+        super(handlers);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean offer(final Object input) {
+        Channels.fireMessageReceived(getChannel(), input);
+        return !isEmpty();
+    }
+}
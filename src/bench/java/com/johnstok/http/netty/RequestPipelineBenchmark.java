@@ -0,0 +1,245 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
+import org.jboss.netty.util.CharsetUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import com.johnstok.http.Version;
+import com.johnstok.http.async.Request;
+import com.johnstok.http.async.RequestFactory;
+import com.johnstok.http.async.Response;
+
+
+/**
+ * Measures the cost of one request/response exchange through the server's
+ * decoder, handler, response and encoder, without a socket.
+ * <p>Run with '-prof gc' to report bytes allocated per request
+ * ('gc.alloc.rate.norm').
+ *
+ * @author Keith Webster Johnston.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestPipelineBenchmark {
+
+    private static final byte[] BODY =
+        "Hello World!".getBytes(CharsetUtil.US_ASCII);
+    private static final int STREAMED_CHUNKS = 16;
+    private static final byte[] STREAMED_CHUNK = new byte[1024];
+
+    private PipelineEmbedder _fixed;
+    private PipelineEmbedder _streamed;
+    private ChannelBuffer _get;
+    private ChannelBuffer _post;
+    private ChannelBuffer _chunkedUpload;
+
+
+    /** Create the pipelines and requests. */
+    @Setup
+    public void setUp() {
+        _fixed = pipeline(false);
+        _streamed = pipeline(true);
+        _get =
+            ascii(
+                "GET /index.html HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Accept: */*\r\n"
+                + "User-Agent: bench\r\n\r\n");
+        _post =
+            ascii(
+                "POST /form HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Content-Type: application/x-www-form-urlencoded\r\n"
+                + "Content-Length: 27\r\n\r\n"
+                + "name=value&other=some+value");
+        final StringBuilder upload =
+            new StringBuilder(
+                "POST /upload HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "Transfer-Encoding: chunked\r\n\r\n");
+        for (int i=0; i<8; i++) {
+            upload.append("100\r\n");
+            for (int j=0; j<256; j++) { upload.append('x'); }
+            upload.append("\r\n");
+        }
+        upload.append("0\r\n\r\n");
+        _chunkedUpload = ascii(upload.toString());
+    }
+
+
+    /**
+     * A GET with no body and a small fixed-length response.
+     *
+     * @param bh Consumes the encoded response.
+     */
+    @Benchmark
+    public void getNoBody(final Blackhole bh) {
+        exchange(_fixed, _get, bh);
+    }
+
+
+    /**
+     * A small form POST.
+     *
+     * @param bh Consumes the encoded response.
+     */
+    @Benchmark
+    public void smallPost(final Blackhole bh) {
+        exchange(_fixed, _post, bh);
+    }
+
+
+    /**
+     * A 2KB upload in eight chunks.
+     *
+     * @param bh Consumes the encoded response.
+     */
+    @Benchmark
+    public void chunkedUpload(final Blackhole bh) {
+        exchange(_fixed, _chunkedUpload, bh);
+    }
+
+
+    /**
+     * A GET answered with a 16KB chunked response, streamed in 1KB writes.
+     *
+     * @param bh Consumes the encoded response.
+     */
+    @Benchmark
+    public void chunkedStreamingResponse(final Blackhole bh) {
+        exchange(_streamed, _get, bh);
+    }
+
+
+    private void exchange(final PipelineEmbedder pipeline,
+                          final ChannelBuffer request,
+                          final Blackhole bh) {
+        pipeline.offer(request.duplicate());
+        for (Object o=pipeline.poll(); null!=o; o=pipeline.poll()) {
+            bh.consume(o);
+        }
+    }
+
+
+    private static PipelineEmbedder pipeline(final boolean streamed) {
+        return
+            new PipelineEmbedder(
+                new NettyResponseEncoder(),
+                new HttpRequestDecoder(),
+                new AsyncHttpUpstreamHandler(
+                    new RequestFactory() {
+                        @Override
+                        public Request newInstance() {
+                            return new BenchRequest(streamed);
+                        }
+                    },
+                    new NettyServerConfig(),
+                    AsyncHttpUpstreamHandler.DIRECT,
+                    ExchangeObserver.NONE));
+    }
+
+
+    private static ChannelBuffer ascii(final String s) {
+        return
+            ChannelBuffers.unmodifiableBuffer(
+                ChannelBuffers.copiedBuffer(s, CharsetUtil.US_ASCII));
+    }
+
+
+    /**
+     * A request that reads its body and responds on a persistent connection.
+     */
+    private static final class BenchRequest
+        implements
+            Request {
+
+        private static final Map<String, List<String>> FIXED_HEADERS =
+            Collections.singletonMap(
+                "Content-Length",
+                Collections.singletonList(String.valueOf(BODY.length)));
+        private static final Map<String, List<String>> STREAMED_HEADERS =
+            Collections.singletonMap(
+                "Transfer-Encoding", Collections.singletonList("chunked"));
+
+        private final boolean _streamed;
+        private Response _response;
+        private long _received;
+
+        BenchRequest(final boolean streamed) {
+            _streamed = streamed;
+        }
+
+        @Override
+        public void onBegin(final Response response) { _response = response; }
+
+        @Override
+        public void onRequestLine(final String method,
+                                  final String uri,
+                                  final Version version) { /* No Op */ }
+
+        @Override
+        public void onHeaders(final Map<String, List<String>> headers) {
+            headers.get("Content-Type");
+        }
+
+        @Override
+        public void onBody(final ByteBuffer bytes) {
+            _received += bytes.remaining();
+        }
+
+        @Override
+        public void onEnd(final Map<String, List<String>> trailers) {
+            _response.writeStatusLine(new Version(1, 1), 200, "OK");
+            if (_streamed) {
+                _response.writeHeaders(STREAMED_HEADERS);
+                for (int i=0; i<STREAMED_CHUNKS; i++) {
+                    _response.writeBody(ByteBuffer.wrap(STREAMED_CHUNK));
+                }
+            } else {
+                _response.writeHeaders(FIXED_HEADERS);
+                _response.writeBody(ByteBuffer.wrap(BODY));
+            }
+            _response.writeEnd(null);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * An access log that is written to a file on a background thread.
+ * <p>Each entry is formatted into a fixed-size slot of a lock-free ring
+ * buffer by the thread that completes the response. A writer thread copies
+ * entries into a large buffer and writes them to the file in batches. If
+ * the ring is full the entry is dropped and counted; logging never blocks.
+ * <p>Entries are a single line of the form:
+ * <pre>
+ * &lt;epoch-millis&gt; &lt;client&gt; "&lt;method&gt; &lt;uri&gt;" &lt;status&gt; &lt;bytes&gt; &lt;latency-micros&gt;
+ * </pre>
+ * Entries longer than {@link #ENTRY_SIZE} bytes are truncated. Once the
+ * file reaches the rotation size it is renamed with a timestamp suffix and
+ * a new file is started.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class AccessLog {
+
+    public static Logger logger =
+        Logger.getLogger(AccessLog.class.getName());
+
+    /** The maximum size of an entry, in bytes. */
+    public static final int ENTRY_SIZE = 512;
+
+    private static final int BATCH_SIZE = 256*1024;
+    private static final long IDLE_NANOS = 10*1000*1000;
+
+    private final File _file;
+    private final long _rotateBytes;
+    private final int _mask;
+    private final byte[][] _entries;
+    private final int[] _lengths;
+    private final AtomicLongArray _sequences;
+    private final AtomicLong _tail = new AtomicLong();
+    private final AtomicLong _dropped = new AtomicLong();
+    private final ByteBuffer _batch = ByteBuffer.allocateDirect(BATCH_SIZE);
+    private final Thread _writer;
+    private volatile boolean _closed;
+    private long _head;
+    private FileChannel _channel;
+    private long _fileSize;
+
+
+    /**
+     * Constructor.
+     *
+     * @param file        The file to append entries to.
+     * @param capacity    The number of entries the ring buffer can hold;
+     *  rounded up to a power of two.
+     * @param rotateBytes The file size at which the file is rotated; 0 to
+     *  never rotate.
+     *
+     * @throws IOException If the file cannot be opened.
+     */
+    public AccessLog(final File file,
+                     final int capacity,
+                     final long rotateBytes) throws IOException {
+        if (null==file || capacity<1 || rotateBytes<0) {
+            throw new IllegalArgumentException();
+        }
+        final int size =
+            (1==capacity) ? 1 : Integer.highestOneBit(capacity-1)<<1;
+        _file = file;
+        _rotateBytes = rotateBytes;
+        _mask = size-1;
+        _entries = new byte[size][ENTRY_SIZE];
+        _lengths = new int[size];
+        _sequences = new AtomicLongArray(size);
+        for (int i=0; i<size; i++) { _sequences.set(i, i); }
+        open();
+        _writer = new Thread(new Runnable() {
+            @Override public void run() { write(); }
+        }, "async-http-access-log");                               //$NON-NLS-1$
+        _writer.setDaemon(true);
+        _writer.start();
+    }
+
+
+    /**
+     * Record an entry.
+     *
+     * @param method       The request method.
+     * @param uri          The request URI.
+     * @param status       The response status code.
+     * @param bytes        The number of response body bytes.
+     * @param latencyNanos The time taken to respond, in nanoseconds.
+     * @param client       The client's address; may be NULL.
+     *
+     * @return True if the entry was recorded; false if it was dropped.
+     */
+    public boolean log(final String method,
+                       final String uri,
+                       final int status,
+                       final long bytes,
+                       final long latencyNanos,
+                       final SocketAddress client) {
+        if (_closed) {
+            _dropped.incrementAndGet();
+            return false;
+        }
+
+        long pos = _tail.get();
+        while (true) {
+            final long diff = _sequences.get((int) pos & _mask)-pos;
+            if (0==diff) {
+                if (_tail.compareAndSet(pos, pos+1)) { break; }
+                pos = _tail.get();
+            } else if (diff<0) {                       // Ring is full.
+                _dropped.incrementAndGet();
+                return false;
+            } else {
+                pos = _tail.get();
+            }
+        }
+
+        final int slot = (int) pos & _mask;
+        final byte[] entry = _entries[slot];
+        int i = 0;
+        i = putLong(entry, i, System.currentTimeMillis());
+        i = put(entry, i, ' ');
+        i = putAscii(entry, i, host(client));
+        i = putAscii(entry, i, " \"");                             //$NON-NLS-1$
+        i = putAscii(entry, i, method);
+        i = put(entry, i, ' ');
+        i = putAscii(entry, i, uri);
+        i = putAscii(entry, i, "\" ");                             //$NON-NLS-1$
+        i = putLong(entry, i, status);
+        i = put(entry, i, ' ');
+        i = putLong(entry, i, bytes);
+        i = put(entry, i, ' ');
+        i = putLong(entry, i, latencyNanos/1000);
+        entry[Math.min(i, ENTRY_SIZE-1)] = '\n';
+        _lengths[slot] = Math.min(i, ENTRY_SIZE-1)+1;
+        _sequences.set(slot, pos+1);                   // Publish the entry.
+        return true;
+    }
+
+
+    /**
+     * Query the number of entries dropped because the ring buffer was full
+     * or the log was closed.
+     *
+     * @return The number of dropped entries.
+     */
+    public long getDroppedCount() {
+        return _dropped.get();
+    }
+
+
+    /**
+     * Write any recorded entries and close the file.
+     */
+    public void close() {
+        _closed = true;
+        LockSupport.unpark(_writer);
+        try {
+            _writer.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private void write() {
+        while (true) {
+            final boolean closed = _closed;
+            final int drained = drain();
+            if (_batch.position()>0) { flushBatch(); }
+            if (0==drained) {
+                if (closed) { break; }
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+        try {
+            _channel.close();
+        } catch (final IOException e) {
+            logger.log(Level.WARNING, "Failed to close access log", e);
+        }
+    }
+
+
+    /*
+     * Copy published entries into the batch buffer until it is full or the
+     * ring is empty.
+     */
+    private int drain() {
+        int drained = 0;
+        while (_batch.remaining()>=ENTRY_SIZE) {
+            final int slot = (int) _head & _mask;
+            if (_sequences.get(slot)!=_head+1) { break; }
+            _batch.put(_entries[slot], 0, _lengths[slot]);
+            _sequences.set(slot, _head+_mask+1);       // Free the slot.
+            _head++;
+            drained++;
+        }
+        return drained;
+    }
+
+
+    private void flushBatch() {
+        _batch.flip();
+        try {
+            while (_batch.hasRemaining()) {
+                _fileSize += _channel.write(_batch);
+            }
+            if (_rotateBytes>0 && _fileSize>=_rotateBytes) { rotate(); }
+        } catch (final IOException e) {
+            logger.log(Level.WARNING, "Failed to write access log", e);
+        }
+        _batch.clear();
+    }
+
+
+    private void rotate() throws IOException {
+        _channel.close();
+        final File rotated =
+            new File(_file.getPath()+"."+System.currentTimeMillis()); //$NON-NLS-1$
+        if (!_file.renameTo(rotated)) {
+            logger.warning("Failed to rotate access log: "+_file);
+        }
+        open();
+    }
+
+
+    private void open() throws IOException {
+        _channel = new FileOutputStream(_file, true).getChannel();
+        _fileSize = _channel.size();
+    }
+
+
+    private static String host(final SocketAddress address) {
+        if (address instanceof InetSocketAddress
+            && null!=((InetSocketAddress) address).getAddress()) {
+            return ((InetSocketAddress) address).getAddress().getHostAddress();
+        }
+        return "-";                                                //$NON-NLS-1$
+    }
+
+
+    private static int put(final byte[] entry, final int i, final char c) {
+        if (i>=ENTRY_SIZE-1) { return i; }
+        entry[i] = (byte) c;
+        return i+1;
+    }
+
+
+    private static int putAscii(final byte[] entry,
+                                final int start,
+                                final String s) {
+        if (null==s) { return put(entry, start, '-'); }
+        int i = start;
+        for (int j=0; j<s.length() && i<ENTRY_SIZE-1; j++) {
+            final char c = s.charAt(j);
+            entry[i++] = (byte) ((c<32 || c>126) ? '?' : c);
+        }
+        return i;
+    }
+
+
+    private static int putLong(final byte[] entry,
+                               final int start,
+                               final long value) {
+        if (value<0) { return putLong(entry, put(entry, start, '-'), -value); }
+        long divisor = 1;
+        while (value/divisor>=10) { divisor *= 10; }
+        int i = start;
+        for (; divisor>0; divisor /= 10) {
+            i = put(entry, i, (char) ('0'+(value/divisor)%10));
+        }
+        return i;
+    }
+}
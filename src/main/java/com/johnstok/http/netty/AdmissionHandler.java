@@ -0,0 +1,223 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+
+/**
+ * Limits the number of open connections, in total and per client address.
+ * <p>A connection over the per-address limit is closed at once. A
+ * connection over the total limit is either closed at once or, if accepts
+ * are paused, held until another connection closes. Netty opens accepted
+ * connections on its boss thread, so while one is held no further
+ * connections are accepted; they wait in the operating system's backlog.
+ * <p>The events of a connection that is not admitted go no further up the
+ * pipeline. One instance is shared by every connection.
+ *
+ * @author Keith Webster Johnston.
+ */
+class AdmissionHandler
+    extends
+        SimpleChannelUpstreamHandler {
+
+    private static final Object REJECTED = new Object();
+    private static final Integer ONE = Integer.valueOf(1);
+
+    private final int _maxConnections;
+    private final int _maxPerAddress;
+    private final boolean _pauseAccepts;
+    private final ServerMetrics _metrics;
+    private final AtomicInteger _count = new AtomicInteger();
+    private final ConcurrentMap<InetAddress, Integer> _perAddress =
+        new ConcurrentHashMap<InetAddress, Integer>();
+    private boolean _closed;
+
+
+    /**
+     * Constructor.
+     *
+     * @param maxConnections The maximum number of open connections, or zero
+     *  for no limit.
+     * @param maxPerAddress  The maximum number of open connections from one
+     *  client address, or zero for no limit.
+     * @param pauseAccepts   True to hold connections over the total limit;
+     *  false to close them.
+     * @param metrics        Records rejected connections.
+     */
+    AdmissionHandler(final int maxConnections,
+                     final int maxPerAddress,
+                     final boolean pauseAccepts,
+                     final ServerMetrics metrics) {
+        _maxConnections = maxConnections;
+        _maxPerAddress = maxPerAddress;
+        _pauseAccepts = pauseAccepts;
+        _metrics = metrics;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void handleUpstream(final ChannelHandlerContext ctx,
+                               final ChannelEvent e) throws Exception {
+        if (REJECTED==ctx.getAttachment()) { return; }
+        super.handleUpstream(ctx, e);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void channelOpen(final ChannelHandlerContext ctx,
+                            final ChannelStateEvent e) {
+        final InetAddress address = addressOf(ctx);
+        if (admit(address)) {
+            ctx.setAttachment(address);
+            ctx.sendUpstream(e);
+        } else {
+            ctx.setAttachment(REJECTED);
+            _metrics.connectionRejected();
+            ctx.getChannel().close();
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void channelClosed(final ChannelHandlerContext ctx,
+                              final ChannelStateEvent e) {
+        release((InetAddress) ctx.getAttachment(), true);
+        ctx.sendUpstream(e);
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The number of admitted connections that are open.
+     */
+    int getCount() {
+        return _count.get();
+    }
+
+
+    /**
+     * Stop holding connections; any held connection is closed.
+     */
+    synchronized void close() {
+        _closed = true;
+        notifyAll();
+    }
+
+
+    private boolean admit(final InetAddress address) {
+        if (!acquire(address)) { return false; }
+        if (acquire()) { return true; }
+        release(address, false);
+        return false;
+    }
+
+
+    /*
+     * Called on the boss thread, so waiting here pauses accepts.
+     */
+    private boolean acquire() {
+        if (tryAcquire()) { return true; }
+        if (!_pauseAccepts) { return false; }
+        synchronized (this) {
+            while (!_closed) {
+                if (tryAcquire()) { return true; }
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    private boolean tryAcquire() {
+        while (true) {
+            final int count = _count.get();
+            if (_maxConnections>0 && count>=_maxConnections) { return false; }
+            if (_count.compareAndSet(count, count+1)) { return true; }
+        }
+    }
+
+
+    private void release(final InetAddress address, final boolean total) {
+        if (total) {
+            _count.decrementAndGet();
+            if (_pauseAccepts) {
+                synchronized (this) { notifyAll(); }
+            }
+        }
+        if (null==address || 0==_maxPerAddress) { return; }
+        while (true) {
+            final Integer count = _perAddress.get(address);
+            if (null==count) { return; }
+            if (1==count.intValue()) {
+                if (_perAddress.remove(address, count)) { return; }
+            } else if (_perAddress.replace(
+                           address, count, Integer.valueOf(count.intValue()-1))) {
+                return;
+            }
+        }
+    }
+
+
+    /*
+     * Entries are removed when their count reaches zero, so the map only
+     * holds addresses with open connections.
+     */
+    private boolean acquire(final InetAddress address) {
+        if (null==address || 0==_maxPerAddress) { return true; }
+        while (true) {
+            final Integer count = _perAddress.get(address);
+            if (null==count) {
+                if (null==_perAddress.putIfAbsent(address, ONE)) { return true; }
+            } else if (count.intValue()>=_maxPerAddress) {
+                return false;
+            } else if (_perAddress.replace(
+                           address, count, Integer.valueOf(count.intValue()+1))) {
+                return true;
+            }
+        }
+    }
+
+
+    private static InetAddress addressOf(final ChannelHandlerContext ctx) {
+        final SocketAddress address = ctx.getChannel().getRemoteAddress();
+        return (address instanceof InetSocketAddress)
+            ? ((InetSocketAddress) address).getAddress()
+            : null;
+    }
+}
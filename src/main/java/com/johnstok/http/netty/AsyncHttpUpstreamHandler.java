@@ -22,50 +22,138 @@ package com.johnstok.http.netty;
 import static org.jboss.netty.handler.codec.http.HttpResponseStatus.*;
 import static org.jboss.netty.handler.codec.http.HttpVersion.*;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
 import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpChunkTrailer;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 import com.johnstok.http.Version;
 import com.johnstok.http.async.Request;
 import com.johnstok.http.async.RequestFactory;
-import com.johnstok.http.async.Response;
 
 
 /**
  * Netty handler for dispatching requests.
+ * <p>One handler is created per connection. Requests on a persistent
+ * connection are dispatched in turn; the connection is closed by the
+ * response once the protocol or the {@link Request} requires it. Pipelined
+ * requests may complete in any order but their responses are written in
+ * the order the requests arrived.
+ * <p>Messages are dispatched to requests one at a time, either on the
+ * thread that received them or on a thread from the dispatch executor.
+ * While a request has paused its body, or too many messages are waiting
+ * for dispatch, reading is suspended.
+ * <p>A connection asked to close when idle finishes the requests it has
+ * started and closes once no request is outstanding. Requests not yet
+ * dispatched are dropped, and reading stops, so a client sees the
+ * connection close and may retry them elsewhere.
  *
  * @author Keith Webster Johnston.
  */
 class AsyncHttpUpstreamHandler
     extends
-        SimpleChannelUpstreamHandler {
+        SimpleChannelUpstreamHandler
+    implements
+        BodyDemand {
 
     public static Logger logger =
         Logger.getLogger(AsyncHttpUpstreamHandler.class.getName());
+    private static final ThrottledLog ERRORS = new ThrottledLog(logger, 10000);
+
+    /** Dispatches messages on the thread that received them. */
+    static final Executor DIRECT = new Executor() {
+        @Override public void execute(final Runnable r) { r.run(); }
+    };
+
+    private static final int MAX_BACKLOG = 64;
+
+    /** Ends a non-chunked request whose body delivery was paused. */
+    private static final Object END_OF_BODY = new Object();
 
     private final RequestFactory _requestFactory;
+    private final NettyServerConfig _config;
+    private final Executor _dispatcher;
+    private final ExchangeObserver _observer;
+    private final LinkedList<Object> _backlog = new LinkedList<Object>();
+    private final Queue<Exchange> _exchanges = new LinkedList<Exchange>();
+    private final Runnable _drain = new Runnable() {
+        @Override public void run() { dispatchBacklog(); }
+    };
+    private ChannelHandlerContext _ctx;
+    private ConnectionTimeouts _timeouts;
+    private ExchangeObserver _exchangeObserver;
+    private ReadSuspender _reads;
+    private ResponseSequencer _sequencer;
+    private Runnable _readyListener;
     private Request _req;
+    private boolean _discarding;
+    private boolean _dispatching;
+    private boolean _backlogFull;
+    private boolean _closeWhenIdle;
+    private boolean _dropping;
+    private int _pauses;
 
 
     /**
      * Constructor.
      *
      * @param requestFactory The factory for request objects.
+     * @param config         The server's configuration.
+     * @param dispatcher     The executor that runs request callbacks; use
+     *  {@link #DIRECT} to run them on the thread that received the message.
+     * @param observer       Notified as each exchange completes.
      */
-    AsyncHttpUpstreamHandler(final RequestFactory requestFactory) {
+    AsyncHttpUpstreamHandler(final RequestFactory requestFactory,
+                             final NettyServerConfig config,
+                             final Executor dispatcher,
+                             final ExchangeObserver observer) {
         _requestFactory = requestFactory;
+        _config = config;
+        _dispatcher = dispatcher;
+        _observer = observer;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void channelOpen(final ChannelHandlerContext ctx,
+                            final ChannelStateEvent e) {
+        final Channel channel = ctx.getChannel();
+        final ConnectionTimeouts timeouts =
+            ctx.getPipeline().get(ConnectionTimeouts.class);
+        synchronized (this) {
+            _ctx = ctx;
+            _timeouts = timeouts;
+            _exchangeObserver = observe(_observer, timeouts);
+            _reads = new ReadSuspender(channel);
+            _sequencer =
+                new ResponseSequencer(
+                    channel,
+                    _reads,
+                    _config.getMaxPipelinedRequests(),
+                    _config.getWriteBufferHighWaterMark());
+        }
+        ctx.sendUpstream(e);
     }
 
 
@@ -75,7 +163,127 @@ class AsyncHttpUpstreamHandler
                                 final MessageEvent me) {
 
         final Object o = me.getMessage();
-        logger.info(o.toString());
+        if (logger.isLoggable(Level.FINE)) { logger.fine(o.toString()); }
+        if (null!=_timeouts) { _timeouts.received(o); }
+
+        synchronized (this) {
+            if (_dropping) { return; }
+            _backlog.add(o);
+            if (!_backlogFull && _backlog.size()>=MAX_BACKLOG) {
+                _backlogFull = true;
+                _reads.suspend();
+            }
+        }
+        drain();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void pause() {
+        if (0==_pauses++) { _reads.suspend(); }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void resume() {
+        final boolean ready;
+        synchronized (this) {
+            if (0==_pauses) { throw new IllegalStateException(); }
+            if (0!=--_pauses) { return; }
+            _reads.resume();
+            ready = !_backlogFull;
+        }
+        drain();
+        if (ready) { ready(); }
+    }
+
+
+    /**
+     * Query whether a message received now would be dispatched without
+     * waiting for the request to resume or for the backlog to shrink.
+     *
+     * @return True if the handler is ready for more messages.
+     */
+    synchronized boolean isReady() {
+        return 0==_pauses && !_backlogFull;
+    }
+
+
+    /**
+     * Set the callback run when the handler becomes ready for more
+     * messages, after the request resumes or the backlog shrinks.
+     * <p>The callback is run without holding the handler's lock, on the
+     * thread that made the handler ready.
+     *
+     * @param listener The callback; NULL for none.
+     */
+    synchronized void setReadyListener(final Runnable listener) {
+        _readyListener = listener;
+    }
+
+
+    private void ready() {
+        final Runnable listener;
+        synchronized (this) { listener = _readyListener; }
+        if (null!=listener) { listener.run(); }
+    }
+
+
+    /*
+     * Only one thread dispatches at a time; a thread that finds another
+     * dispatching leaves its message for that thread.
+     */
+    private void drain() {
+        synchronized (this) {
+            if (_dispatching || _pauses>0 || _backlog.isEmpty()) { return; }
+            _dispatching = true;
+        }
+        _dispatcher.execute(_drain);
+    }
+
+
+    /*
+     * Dispatch backlogged messages until the backlog is empty or the request
+     * pauses. The dispatch executor may not report a failed task, so after a
+     * failure, which dispatch() has logged, the connection is closed here and
+     * the messages left in the backlog are discarded.
+     */
+    private void dispatchBacklog() {
+        while (true) {
+            final Object o;
+            boolean ready = false;
+            synchronized (this) {
+                dropUndispatched();
+                if (_pauses>0 || _backlog.isEmpty()) {
+                    _dispatching = false;
+                    closeIfIdle();
+                    return;
+                }
+                o = _backlog.poll();
+                if (_backlogFull && _backlog.size()<MAX_BACKLOG/2) {
+                    _backlogFull = false;
+                    _reads.resume();
+                    ready = 0==_pauses;
+                }
+            }
+            if (ready) { ready(); }
+            try {
+                dispatch(_ctx, o);
+            } catch (final RuntimeException e) {
+                synchronized (this) {
+                    _backlog.clear();
+                    _dispatching = false;
+                }
+                _ctx.getChannel().close();
+                return;
+            }
+        }
+    }
+
+
+    private void dispatch(final ChannelHandlerContext ctx, final Object o) {
 
         if (!ctx.getChannel().isOpen()) { discard(o); return; }
 
@@ -83,12 +291,30 @@ class AsyncHttpUpstreamHandler
             if (o instanceof HttpRequest) {
                 final HttpRequest request = (HttpRequest) o;
                 final HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
-                final Channel channel = me.getChannel();
 
-                _req = _requestFactory.newInstance();
-                final Response resp = new NettyResponse(response, channel);
+                final boolean expectContinue = // Body not yet sent.
+                    request.isChunked()
+                    && HttpHeaders.is100ContinueExpected(request);
+
                 final String method = request.getMethod().toString();
                 final String uri = request.getUri();
+                final Exchange exchange = begin(ctx, method, uri);
+                final boolean keepAlive;
+                synchronized (this) {
+                    keepAlive =
+                        HttpHeaders.isKeepAlive(request) && !_closeWhenIdle;
+                }
+                _req = _requestFactory.newInstance();
+                final NettyResponse resp =
+                    new NettyResponse(
+                        response,
+                        _sequencer,
+                        this,
+                        exchange,
+                        _config.getResponseBufferSize(),
+                        keepAlive,
+                        expectContinue,
+                        compression(request));
                 final Version version =
                     new Version(
                         request.getProtocolVersion().getMajorVersion(),
@@ -96,88 +322,247 @@ class AsyncHttpUpstreamHandler
                 try {
                     _req.onBegin(resp);
                     _req.onRequestLine(method, uri, version);
-                    _req.onHeaders(headersAsMap(request));
+                    _req.onHeaders(HeaderView.of(request));
                 } catch (final Exception e) {
                     ctx.getChannel().close();
-                    logger.log(Level.WARNING, "Request threw exception", e);
+                    ERRORS.log(Level.WARNING, "Request threw exception", e);
+                    return;
+                }
+
+                if (expectContinue && !resp.writeContinue()) {
+                    _req = null;         // Rejected; discard any body sent.
+                    _discarding = true;
                     return;
                 }
 
                 if (!request.isChunked()) { // No additional chunks to come
+                    boolean delivered = true;
                     try {
-                        _req.onBody(ByteBuffer.wrap(request.getContent().array()));
-                        _req.onEnd(null);
+                        delivered = onBody(request.getContent(), true);
+                        if (delivered) { _req.onEnd(null); }
                     } catch (final Exception e) {
-                        logger.log(Level.WARNING, "Request threw exception", e);
-                    } finally {
                         ctx.getChannel().close();
-                        logger.info("Channel closed");
+                        ERRORS.log(Level.WARNING, "Request threw exception", e);
+                    } finally {
+                        if (delivered) { _req = null; }
                     }
                 }
 
+            } else if (END_OF_BODY==o) {
+                try {
+                    _req.onEnd(null);
+                } catch (final Exception e) {
+                    ctx.getChannel().close();
+                    ERRORS.log(Level.WARNING, "Request threw exception", e);
+                } finally {
+                    _req = null;
+                }
+
             } else if (o instanceof HttpChunk) {
                 final HttpChunk chunk = (HttpChunk) o;
-                if (chunk.isLast()) {
+                if (_discarding) {
+                    _discarding = !chunk.isLast();
+                } else if (chunk.isLast()) {
                     try {
                         if (chunk instanceof HttpChunkTrailer) {
                             final HttpChunkTrailer trailer = (HttpChunkTrailer) chunk;
-                            _req.onEnd(headersAsMap(trailer));
+                            _req.onEnd(HeaderView.of(trailer));
                         } else {
-                            _req.onEnd(new HashMap<String, List<String>>());
+                            _req.onEnd(Collections.<String, List<String>>emptyMap());
                         }
-                    } finally {
+                    } catch (final Exception e) {
                         ctx.getChannel().close();
-                        logger.info("Channel closed");
+                        ERRORS.log(Level.WARNING, "Request threw exception", e);
+                    } finally {
+                        _req = null;
                     }
                 } else {
                     try {
-                        _req.onBody(ByteBuffer.wrap(chunk.getContent().array()));
+                        onBody(chunk.getContent(), false);
                     } catch (final Exception e) {
                         ctx.getChannel().close();
-                        logger.log(Level.WARNING, "Request threw exception", e);
+                        ERRORS.log(Level.WARNING, "Request threw exception", e);
                         return;
                     }
                 }
             }
         } catch (final RuntimeException e) {
-            logger.log(Level.WARNING, "Error processing request", e);
+            ERRORS.log(Level.WARNING, "Error processing request", e);
             throw e;
         }
     }
 
 
+    /*
+     * Responses complete in request order, so completed exchanges are always
+     * at the front of the list.
+     */
+    private Exchange begin(final ChannelHandlerContext ctx,
+                           final String method,
+                           final String uri) {
+        final Exchange exchange =
+            new Exchange(
+                method,
+                uri,
+                ctx.getChannel().getRemoteAddress(),
+                System.nanoTime(),
+                _exchangeObserver);
+        synchronized (this) {
+            while (!_exchanges.isEmpty() && _exchanges.peek().isComplete()) {
+                _exchanges.poll();
+            }
+            _exchanges.add(exchange);
+        }
+        exchange.begin();
+        return exchange;
+    }
+
+
+    /**
+     * Close the connection once no request is outstanding.
+     * <p>The connection closes immediately if it is idle now.
+     */
+    void closeWhenIdle() {
+        synchronized (this) {
+            _closeWhenIdle = true;
+            if (!_dispatching) { dropUndispatched(); }
+            closeIfIdle();
+        }
+    }
+
+
+    /*
+     * Once closing, a request at the head of the backlog has not started;
+     * it is dropped with everything read after it, and nothing more is read.
+     */
+    private synchronized void dropUndispatched() {
+        if (!_closeWhenIdle || _dropping) { return; }
+        if (!(_backlog.peek() instanceof HttpRequest)) { return; }
+        _dropping = true;
+        _backlog.clear();
+        _reads.suspend();
+    }
+
+
+    /*
+     * Idle means nothing is waiting for dispatch, no request is being read
+     * and every response has completed.
+     */
+    private synchronized void closeIfIdle() {
+        if (!_closeWhenIdle || null==_ctx) { return; }
+        if (_dispatching || null!=_req) { return; }
+        if (!_backlog.isEmpty()) { return; }
+        for (final Exchange exchange : _exchanges) {
+            if (!exchange.isComplete()) { return; }
+        }
+        _ctx.getChannel().close();
+    }
+
+
+    /*
+     * The body of a response to HEAD is never sent, so is not compressed.
+     */
+    private Compression compression(final HttpRequest request) {
+        if (HttpMethod.HEAD.equals(request.getMethod())) {
+            return Compression.NONE;
+        }
+        return Compression.negotiate(
+            request.getHeader(HttpHeaders.Names.ACCEPT_ENCODING),
+            _config.getCompressionLevel(),
+            _config.getCompressionThreshold());
+    }
+
+
+    /*
+     * Report completed responses to the connection's timeouts, so it can
+     * tell when the connection becomes idle, and to the connection itself
+     * in case it is waiting to close.
+     */
+    private ExchangeObserver observe(final ExchangeObserver observer,
+                                     final ConnectionTimeouts timeouts) {
+        return new ExchangeObserver() {
+            @Override
+            public void onBegin(final Exchange exchange) {
+                observer.onBegin(exchange);
+            }
+
+            @Override
+            public void onComplete(final Exchange exchange,
+                                   final boolean success) {
+                if (null!=timeouts) { timeouts.responseEnded(); }
+                observer.onComplete(exchange, success);
+                closeIfIdle();
+            }
+        };
+    }
+
+
+    /*
+     * Deliver the readable bytes of a buffer without copying them. Each
+     * component of a composite buffer is delivered as a separate view.
+     * If the request pauses, the undelivered components are put back at the
+     * head of the backlog, followed by the end of the body if this is the
+     * last of it, and are delivered once the request resumes.
+     */
+    private boolean onBody(final ChannelBuffer content, final boolean last) {
+        final ByteBuffer[] components = content.toByteBuffers();
+        for (int i=0; i<components.length; i++) {
+            synchronized (this) {
+                if (_pauses>0) {
+                    if (last) { _backlog.addFirst(END_OF_BODY); }
+                    _backlog.addFirst(
+                        new DefaultHttpChunk(
+                            ChannelBuffers.wrappedBuffer(
+                                Arrays.copyOfRange(
+                                    components, i, components.length))));
+                    return false;
+                }
+            }
+            _req.onBody(components[i]);
+        }
+        return true;
+    }
+
+
     /**
      * TODO: Add a description for this method.
      *
      * @param o
      */
     private void discard(final Object o) {
-        logger.warning("Discarded message on closed channel.");
+        logger.fine("Discarded message on closed channel.");
     }
 
 
     /** {@inheritDoc} */
     @Override
-    public void exceptionCaught(final ChannelHandlerContext ctx,
-                                final ExceptionEvent e) {
-        // Catching 'java.io.IOException: Broken pipe' here indicates the client disconnected early.
-        logger.log(Level.WARNING, "Error processing request", e.getCause());
+    public void channelInterestChanged(final ChannelHandlerContext ctx,
+                                       final ChannelStateEvent e) {
+        _sequencer.writabilityChanged();
+        ctx.sendUpstream(e);
     }
 
 
-    private Map<String, List<String>> headersAsMap(final HttpRequest request) {
-        final Map<String, List<String>> headers = new HashMap<String, List<String>>();
-        for (final String name : request.getHeaderNames()) {
-            headers.put(name, request.getHeaders(name));
+    /** {@inheritDoc} */
+    @Override
+    public void channelClosed(final ChannelHandlerContext ctx,
+                              final ChannelStateEvent e) {
+        _sequencer.writabilityChanged();
+        final List<Exchange> abandoned;
+        synchronized (this) {
+            abandoned = new ArrayList<Exchange>(_exchanges);
+            _exchanges.clear();
         }
-        return headers;
+        for (final Exchange exchange : abandoned) { exchange.complete(false); }
+        ctx.sendUpstream(e);
     }
 
-    private Map<String, List<String>> headersAsMap(final HttpChunkTrailer request) {
-        final Map<String, List<String>> headers = new HashMap<String, List<String>>();
-        for (final String name : request.getHeaderNames()) {
-            headers.put(name, request.getHeaders(name));
-        }
-        return headers;
+
+    /** {@inheritDoc} */
+    @Override
+    public void exceptionCaught(final ChannelHandlerContext ctx,
+                                final ExceptionEvent e) {
+        // Catching 'java.io.IOException: Broken pipe' here indicates the client disconnected early.
+        ERRORS.log(Level.WARNING, "Error processing request", e.getCause());
     }
 }
@@ -0,0 +1,217 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Handler;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+
+
+/**
+ * A log handler that hands records to other handlers on a background
+ * thread.
+ * <p>Records are held in a fixed-size ring buffer. A thread that logs never
+ * blocks on I/O: if the buffer is full the record is dropped and counted.
+ * <p>Like {@link java.util.logging.MemoryHandler}, the handler can be set up
+ * from the logging configuration:
+ * <pre>
+ * com.johnstok.http.netty.handlers=com.johnstok.http.netty.AsyncLogHandler
+ * com.johnstok.http.netty.useParentHandlers=false
+ * com.johnstok.http.netty.AsyncLogHandler.target=java.util.logging.ConsoleHandler
+ * com.johnstok.http.netty.AsyncLogHandler.size=1024
+ * </pre>
+ *
+ * @author Keith Webster Johnston.
+ */
+public class AsyncLogHandler
+    extends
+        Handler {
+
+    private final List<Handler> _targets;
+    private final LogRecord[] _ring;
+    private final AtomicLong _dropped = new AtomicLong();
+    private final Thread _writer;
+    private int _head;
+    private int _size;
+    private boolean _publishing;
+    private boolean _closed;
+
+
+    /**
+     * Constructor.
+     * <p>The target handler class and buffer size are read from the
+     * '.target' and '.size' logging properties for this class; they default
+     * to a {@link ConsoleHandler} and 1024 records.
+     */
+    public AsyncLogHandler() {
+        this(intProperty("size", 1024), targetProperty());        //$NON-NLS-1$
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The number of records the buffer can hold.
+     * @param targets  The handlers that publish the records.
+     */
+    public AsyncLogHandler(final int capacity, final Handler... targets) {
+        if (capacity<1) { throw new IllegalArgumentException(); }
+        _ring = new LogRecord[capacity];
+        _targets = new ArrayList<Handler>(Arrays.asList(targets));
+        _writer = new Thread(new Runnable() {
+            @Override public void run() { drain(); }
+        }, "async-http-log");                                      //$NON-NLS-1$
+        _writer.setDaemon(true);
+        _writer.start();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void publish(final LogRecord record) {
+        if (!isLoggable(record)) { return; }
+        record.getSourceClassName(); // Infer the caller on this thread.
+        synchronized (this) {
+            if (_closed || _size==_ring.length) {
+                _dropped.incrementAndGet();
+                return;
+            }
+            _ring[(_head+_size)%_ring.length] = record;
+            if (0==_size++) { notifyAll(); }
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void flush() {
+        synchronized (this) {
+            while ((0!=_size || _publishing) && _writer.isAlive()) {
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        for (final Handler h : _targets) { h.flush(); }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * <p>Records already buffered are published before this method returns.
+     * The target handlers are flushed but not closed.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            _closed = true;
+            notifyAll();
+        }
+        try {
+            _writer.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (final Handler h : _targets) { h.flush(); }
+    }
+
+
+    /**
+     * Query the number of records dropped because the buffer was full.
+     *
+     * @return The number of dropped records.
+     */
+    public long getDroppedCount() {
+        return _dropped.get();
+    }
+
+
+    private void drain() {
+        while (true) {
+            final LogRecord record;
+            synchronized (this) {
+                while (0==_size && !_closed) {
+                    try {
+                        wait();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                }
+                if (0==_size) { return; }
+                record = _ring[_head];
+                _ring[_head] = null;
+                _head = (_head+1)%_ring.length;
+                _size--;
+                _publishing = true;
+            }
+            for (final Handler h : _targets) {
+                try {
+                    h.publish(record);
+                } catch (final RuntimeException e) {
+                    reportError(null, e, 0);
+                }
+            }
+            synchronized (this) {
+                _publishing = false;
+                if (0==_size) { notifyAll(); }
+            }
+        }
+    }
+
+
+    private static String property(final String name) {
+        return
+            LogManager.getLogManager().getProperty(
+                AsyncLogHandler.class.getName()+"."+name);         //$NON-NLS-1$
+    }
+
+
+    private static int intProperty(final String name, final int defaultValue) {
+        final String value = property(name);
+        if (null==value) { return defaultValue; }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (final NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+
+    private static Handler targetProperty() {
+        final String value = property("target");                   //$NON-NLS-1$
+        if (null==value) { return new ConsoleHandler(); }
+        try {
+            return (Handler) ClassLoader.getSystemClassLoader()
+                                        .loadClass(value.trim())
+                                        .newInstance();
+        } catch (final Exception e) {
+            throw new IllegalArgumentException(
+                "Cannot create log handler: "+value, e);
+        }
+    }
+}
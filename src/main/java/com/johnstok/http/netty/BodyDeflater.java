@@ -0,0 +1,217 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import java.lang.reflect.Method;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+
+/**
+ * Compresses response bodies as they are written, in gzip or deflate
+ * format.
+ * <p>One instance compresses one body at a time, and is shared between
+ * connections through a {@link DeflaterPool}. It holds a single raw
+ * Deflater and scratch buffer, which are reset between bodies; the gzip or
+ * zlib framing is written around the raw stream, so either coding can
+ * follow the other. The Deflater's native memory is only freed by
+ * {@link #end()}.
+ *
+ * @author Keith Webster Johnston.
+ */
+final class BodyDeflater {
+
+    private static final int SCRATCH_SIZE = 8192;
+    private static final byte[] GZIP_HEADER =
+        {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final byte[] ZLIB_HEADER = {0x78, (byte) 0x9c};
+    private static final int SYNC_FLUSH = 2;    // Deflater.SYNC_FLUSH, Java 7.
+    private static final Method DEFLATE_WITH_FLUSH = deflateWithFlush();
+
+    private final Deflater _deflater =
+        new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final byte[] _scratch = new byte[SCRATCH_SIZE];
+    private final CRC32 _crc = new CRC32();
+    private final Adler32 _adler = new Adler32();
+    private boolean _gzip;
+    private boolean _headerWritten;
+
+
+    /**
+     * Start a new body.
+     * <p>Any body in progress is abandoned.
+     *
+     * @param coding The content coding, {@link Compression#GZIP} or
+     *  {@link Compression#DEFLATE}.
+     * @param level  The compression level, 1 to 9.
+     */
+    void start(final String coding, final int level) {
+        _gzip = Compression.GZIP.equals(coding);
+        _deflater.reset();
+        _deflater.setLevel(level);
+        checksum().reset();
+        _headerWritten = false;
+    }
+
+
+    /**
+     * Compress part of the body.
+     *
+     * @param in The uncompressed bytes; they are consumed.
+     *
+     * @return The compressed bytes available so far; may be empty.
+     */
+    ChannelBuffer deflate(final ChannelBuffer in) {
+        final int length = in.readableBytes();
+        final byte[] bytes;
+        final int offset;
+        if (in.hasArray()) {
+            bytes = in.array();
+            offset = in.arrayOffset()+in.readerIndex();
+        } else {
+            bytes = new byte[length];
+            in.getBytes(in.readerIndex(), bytes);
+            offset = 0;
+        }
+        in.skipBytes(length);
+
+        checksum().update(bytes, offset, length);
+        _deflater.setInput(bytes, offset, length);
+        final ChannelBuffer out = header(length/2);
+        while (!_deflater.needsInput()) { drain(out); }
+        return out;
+    }
+
+
+    /**
+     * Flush the body.
+     * <p>Compressed data held by the Deflater is returned, aligned to a byte
+     * boundary, so the client can decompress everything written so far. On
+     * JVMs whose Deflater cannot be flushed, before Java 7, the held data is
+     * returned only when more input or the end of the body releases it.
+     *
+     * @return The compressed bytes written so far; may be empty.
+     */
+    ChannelBuffer flush() {
+        final ChannelBuffer out = header(64);
+        if (null==DEFLATE_WITH_FLUSH) { return out; }
+        int count;
+        do { // A full scratch buffer may mean more output is pending.
+            count = syncFlush();
+            out.writeBytes(_scratch, 0, count);
+        } while (count==_scratch.length);
+        return out;
+    }
+
+
+    /**
+     * Complete the body.
+     *
+     * @return The remaining compressed bytes, including any trailer.
+     */
+    ChannelBuffer finish() {
+        _deflater.finish();
+        final ChannelBuffer out = header(64);
+        while (!_deflater.finished()) { drain(out); }
+        final int checksum = (int) checksum().getValue();
+        if (_gzip) {
+            writeIntLE(out, checksum);
+            writeIntLE(out, _deflater.getTotalIn());
+        } else {
+            out.writeInt(checksum);
+        }
+        return out;
+    }
+
+
+    /**
+     * Free the Deflater's native memory.
+     * <p>The deflater cannot be used afterwards.
+     */
+    void end() {
+        _deflater.end();
+    }
+
+
+    private Checksum checksum() {
+        return (_gzip) ? _crc : _adler;
+    }
+
+
+    private ChannelBuffer header(final int estimate) {
+        final ChannelBuffer out =
+            ChannelBuffers.dynamicBuffer(Math.max(64, estimate));
+        if (!_headerWritten) {
+            out.writeBytes((_gzip) ? GZIP_HEADER : ZLIB_HEADER);
+            _headerWritten = true;
+        }
+        return out;
+    }
+
+
+    private void drain(final ChannelBuffer out) {
+        final int count = _deflater.deflate(_scratch, 0, _scratch.length);
+        out.writeBytes(_scratch, 0, count);
+    }
+
+
+    private int syncFlush() {
+        try {
+            return ((Integer) DEFLATE_WITH_FLUSH.invoke(
+                _deflater,
+                _scratch,
+                Integer.valueOf(0),
+                Integer.valueOf(_scratch.length),
+                Integer.valueOf(SYNC_FLUSH))).intValue();
+        } catch (final Exception e) {
+            throw new IllegalStateException("Failed to flush deflater.", e);
+        }
+    }
+
+
+    /*
+     * Looked up reflectively so the server still runs on JVMs whose
+     * Deflater cannot flush.
+     */
+    private static Method deflateWithFlush() {
+        try {
+            return Deflater.class.getMethod(
+                "deflate",                                         //$NON-NLS-1$
+                byte[].class,
+                int.class,
+                int.class,
+                int.class);
+        } catch (final NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+
+    private static void writeIntLE(final ChannelBuffer out, final int value) {
+        out.writeByte(value);
+        out.writeByte(value>>>8);
+        out.writeByte(value>>>16);
+        out.writeByte(value>>>24);
+    }
+}
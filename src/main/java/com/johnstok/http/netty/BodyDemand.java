@@ -0,0 +1,47 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+
+/**
+ * Controls delivery of request bodies to a {@link com.johnstok.http.async.Request}.
+ *
+ * @author Keith Webster Johnston.
+ */
+interface BodyDemand {
+
+    /** Demand for a response that is not attached to a connection. */
+    BodyDemand NONE = new BodyDemand() {
+        @Override public void pause() { /* No Op */ }
+        @Override public void resume() { /* No Op */ }
+    };
+
+
+    /**
+     * Stop delivering the request body.
+     */
+    void pause();
+
+
+    /**
+     * Restart delivery of the request body.
+     */
+    void resume();
+}
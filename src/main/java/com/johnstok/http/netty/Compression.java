@@ -0,0 +1,215 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+
+
+/**
+ * The response compression a client accepts, and the server's settings for
+ * applying it.
+ * <p>A response is compressed only if its status allows a body, it has no
+ * content encoding of its own, its content type is not already compressed
+ * and any declared length is at least the threshold.
+ *
+ * @author Keith Webster Johnston.
+ */
+final class Compression {
+
+    /** The client accepts no compression. */
+    static final Compression NONE = new Compression(null, 0, 0);
+
+    static final String GZIP = "gzip";                             //$NON-NLS-1$
+    static final String DEFLATE = "deflate";                       //$NON-NLS-1$
+
+    private static final Set<String> COMPRESSED_TYPES =
+        new HashSet<String>(Arrays.asList(
+            "application/gzip",                                    //$NON-NLS-1$
+            "application/x-gzip",                                  //$NON-NLS-1$
+            "application/zip",                                     //$NON-NLS-1$
+            "application/x-bzip2",                                 //$NON-NLS-1$
+            "application/x-7z-compressed",                         //$NON-NLS-1$
+            "application/x-rar-compressed",                        //$NON-NLS-1$
+            "application/x-compress",                              //$NON-NLS-1$
+            "application/pdf",                                     //$NON-NLS-1$
+            "font/woff",                                           //$NON-NLS-1$
+            "font/woff2"));                                        //$NON-NLS-1$
+
+    private final String _coding;
+    private final int _level;
+    private final int _threshold;
+
+
+    private Compression(final String coding,
+                        final int level,
+                        final int threshold) {
+        _coding = coding;
+        _level = level;
+        _threshold = threshold;
+    }
+
+
+    /**
+     * Choose the content coding for a response.
+     * <p>gzip is preferred to deflate when the client accepts both equally.
+     *
+     * @param acceptEncoding The request's 'Accept-Encoding' header; may be
+     *  NULL.
+     * @param level          The default compression level, 0 to 9.
+     * @param threshold      The smallest declared length worth compressing.
+     *
+     * @return The compression to apply; {@link #NONE} if the client accepts
+     *  neither coding.
+     */
+    static Compression negotiate(final String acceptEncoding,
+                                 final int level,
+                                 final int threshold) {
+        if (null==acceptEncoding) { return NONE; }
+
+        float gzip = -1;
+        float deflate = -1;
+        float any = -1;
+        for (final String element : acceptEncoding.split(",")) {   //$NON-NLS-1$
+            final String[] parts = element.split(";");             //$NON-NLS-1$
+            final String coding = parts[0].trim().toLowerCase();
+            final float q = quality(parts);
+            if (GZIP.equals(coding) || "x-gzip".equals(coding)) {  //$NON-NLS-1$
+                gzip = Math.max(gzip, q);
+            } else if (DEFLATE.equals(coding)) {
+                deflate = Math.max(deflate, q);
+            } else if ("*".equals(coding)) {                       //$NON-NLS-1$
+                any = q;
+            }
+        }
+        if (gzip<0) { gzip = any; }
+        if (deflate<0) { deflate = any; }
+
+        if (gzip>0 && gzip>=deflate) {
+            return new Compression(GZIP, level, threshold);
+        } else if (deflate>0) {
+            return new Compression(DEFLATE, level, threshold);
+        }
+        return NONE;
+    }
+
+
+    private static float quality(final String[] parts) {
+        for (int i=1; i<parts.length; i++) {
+            final String param = parts[i].trim();
+            if (param.startsWith("q=") || param.startsWith("Q=")) { //$NON-NLS-1$ //$NON-NLS-2$
+                try {
+                    return Float.parseFloat(param.substring(2).trim());
+                } catch (final NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The content coding; NULL if the client accepts none.
+     */
+    String getCoding() {
+        return _coding;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The default compression level.
+     */
+    int getLevel() {
+        return _level;
+    }
+
+
+    /**
+     * Query whether a response should be compressed.
+     *
+     * @param response The response, with its headers set.
+     * @param block    The response's shared header block; may be NULL.
+     *
+     * @return True if the response's body should be compressed.
+     */
+    boolean isCompressible(final HttpResponse response,
+                           final HeaderBlock block) {
+        if (null==_coding) { return false; }
+
+        final int status = response.getStatus().getCode();
+        if (status<200 || 204==status || 304==status) { return false; }
+
+        if (response.containsHeader(HttpHeaders.Names.CONTENT_ENCODING)
+            || null!=header(block, HttpHeaders.Names.CONTENT_ENCODING)) {
+            return false;
+        }
+
+        String type = response.getHeader(HttpHeaders.Names.CONTENT_TYPE);
+        if (null==type) { type = header(block, HttpHeaders.Names.CONTENT_TYPE); }
+        if (null!=type && isCompressedType(type)) { return false; }
+
+        final String length =
+            response.getHeader(HttpHeaders.Names.CONTENT_LENGTH);
+        if (null!=length) {
+            try {
+                return Long.parseLong(length.trim())>=_threshold;
+            } catch (final NumberFormatException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private static boolean isCompressedType(final String contentType) {
+        final int semi = contentType.indexOf(';');
+        final String type =
+            ((semi<0) ? contentType : contentType.substring(0, semi))
+            .trim()
+            .toLowerCase();
+        return type.startsWith("image/")                           //$NON-NLS-1$
+                   && !type.equals("image/svg+xml")                //$NON-NLS-1$
+               || type.startsWith("audio/")                        //$NON-NLS-1$
+               || type.startsWith("video/")                        //$NON-NLS-1$
+               || COMPRESSED_TYPES.contains(type);
+    }
+
+
+    private static String header(final HeaderBlock block, final String name) {
+        if (null==block) { return null; }
+        for (final Map.Entry<String, List<String>> h
+             : block.getHeaders().entrySet()) {
+            if (name.equalsIgnoreCase(h.getKey()) && !h.getValue().isEmpty()) {
+                return h.getValue().get(0);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,318 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.TimeUnit;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.util.CharsetUtil;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+
+/**
+ * Closes a connection that makes no progress.
+ * <p>Four timeouts apply, depending on the state of the connection:
+ * <ul>
+ *   <li>idle - no request is being read and no response is outstanding;</li>
+ *   <li>header - the head of a request has been partly read;</li>
+ *   <li>body - the gap between reads of a request body;</li>
+ *   <li>write - the gap between completed writes while writes are queued.</li>
+ * </ul>
+ * A request that times out while being read is answered with '408 Request
+ * Timeout' if no response is in progress; otherwise the connection is simply
+ * closed. Read timeouts do not apply while the server has suspended reading.
+ * <p>The handler sits at the socket end of the pipeline, so it sees raw
+ * bytes read and encoded bytes written; the request handler reports the
+ * requests it decodes and the responses it completes. One instance is
+ * created per connection, holding at most one timer entry, which is moved
+ * only when a deadline is brought forward.
+ *
+ * @author Keith Webster Johnston.
+ */
+class ConnectionTimeouts
+    extends
+        SimpleChannelHandler
+    implements
+        TimerTask {
+
+    private static final long NONE = Long.MAX_VALUE;
+    private static final byte[] REQUEST_TIMEOUT =
+        ("HTTP/1.1 408 Request Timeout\r\n"                        //$NON-NLS-1$
+         + "Connection: close\r\n"                                 //$NON-NLS-1$
+         + "Content-Length: 0\r\n\r\n").getBytes(CharsetUtil.US_ASCII); //$NON-NLS-1$
+
+    private final Timer _timer;
+    private final long _idle;
+    private final long _header;
+    private final long _body;
+    private final long _write;
+    private ChannelHandlerContext _ctx;
+    private Timeout _timeout;
+    private long _fireAt;
+    private long _lastActivity;
+    private long _lastRead;
+    private long _headStart;
+    private long _lastWrite;
+    private boolean _reading;
+    private boolean _inBody;
+    private boolean _responding;
+    private boolean _timedOut;
+    private int _outstanding;
+    private int _pendingWrites;
+
+
+    /**
+     * Constructor.
+     * <p>Each timeout is in milliseconds; zero disables it.
+     *
+     * @param timer  The timer shared by every connection.
+     * @param idle   The idle timeout.
+     * @param header The request header timeout.
+     * @param body   The request body timeout.
+     * @param write  The write timeout.
+     */
+    ConnectionTimeouts(final Timer timer,
+                       final long idle,
+                       final long header,
+                       final long body,
+                       final long write) {
+        _timer = timer;
+        _idle = TimeUnit.MILLISECONDS.toNanos(idle);
+        _header = TimeUnit.MILLISECONDS.toNanos(header);
+        _body = TimeUnit.MILLISECONDS.toNanos(body);
+        _write = TimeUnit.MILLISECONDS.toNanos(write);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void channelOpen(final ChannelHandlerContext ctx,
+                            final ChannelStateEvent e) throws Exception {
+        synchronized (this) {
+            _ctx = ctx;
+            _lastActivity = System.nanoTime();
+            arm();
+        }
+        ctx.sendUpstream(e);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void channelClosed(final ChannelHandlerContext ctx,
+                              final ChannelStateEvent e) throws Exception {
+        synchronized (this) {
+            if (null!=_timeout) { _timeout.cancel(); }
+            _timeout = null;
+        }
+        ctx.sendUpstream(e);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void messageReceived(final ChannelHandlerContext ctx,
+                                final MessageEvent e) throws Exception {
+        if (e.getMessage() instanceof ChannelBuffer
+            && ((ChannelBuffer) e.getMessage()).readable()) {
+            synchronized (this) {
+                final long now = System.nanoTime();
+                _lastActivity = now;
+                _lastRead = now;
+                if (!_reading) {
+                    _reading = true;
+                    _headStart = now;
+                    arm();
+                }
+            }
+        }
+        ctx.sendUpstream(e);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void writeRequested(final ChannelHandlerContext ctx,
+                               final MessageEvent e) throws Exception {
+        synchronized (this) {
+            if (_timedOut) {       // The connection has been answered; drop.
+                e.getFuture().setFailure(new ClosedChannelException());
+                return;
+            }
+            _responding = true;
+            if (0==_pendingWrites++) {
+                _lastWrite = System.nanoTime();
+                arm();
+            }
+        }
+        e.getFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(final ChannelFuture future) {
+                written();
+            }
+        });
+        ctx.sendDownstream(e);
+    }
+
+
+    /**
+     * Record a decoded request message.
+     *
+     * @param message The message decoded from the connection.
+     */
+    synchronized void received(final Object message) {
+        if (message instanceof HttpRequest) {
+            if (0==_outstanding++) { _responding = false; }
+            if (((HttpRequest) message).isChunked()) {
+                _reading = true;
+                _inBody = true;
+                _lastRead = System.nanoTime();
+                arm();
+            } else {
+                _reading = false;
+            }
+        } else if (message instanceof HttpChunk
+                   && ((HttpChunk) message).isLast()) {
+            _reading = false;
+            _inBody = false;
+        }
+    }
+
+
+    /**
+     * Record a response being completely written, or abandoned.
+     */
+    synchronized void responseEnded() {
+        if (_outstanding>0) { _outstanding--; }
+        _lastActivity = System.nanoTime();
+        arm();
+    }
+
+
+    private synchronized void written() {
+        _pendingWrites--;
+        _lastWrite = System.nanoTime();
+        _lastActivity = _lastWrite;
+        arm();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void run(final Timeout timeout) {
+        final boolean answer;
+        synchronized (this) {
+            if (timeout!=_timeout || _timedOut) { return; }
+            _timeout = null;
+            final Channel channel = _ctx.getChannel();
+            if (!channel.isOpen()) { return; }
+
+            final long now = System.nanoTime();
+            if (!channel.isReadable()) { // Reads suspended by the server.
+                _lastRead = now;
+                _headStart = now;
+            }
+            final boolean readExpired = expired(readDeadline(), now);
+            if (!readExpired && !expired(writeDeadline(), now)) {
+                arm();
+                return;
+            }
+            answer = readExpired && canAnswer();
+            _timedOut = answer;
+        }
+
+        final Channel channel = _ctx.getChannel();
+        if (answer) {
+            final ChannelFuture future = Channels.future(channel);
+            future.addListener(ChannelFutureListener.CLOSE);
+            Channels.write(
+                _ctx, future, ChannelBuffers.wrappedBuffer(REQUEST_TIMEOUT));
+        } else {
+            channel.close();
+        }
+    }
+
+
+    /*
+     * A 408 may only be sent if the request being read has no earlier
+     * response ahead of it and has not started its own.
+     */
+    private boolean canAnswer() {
+        if (!_reading) { return false; }
+        if (_inBody) { return 1==_outstanding && !_responding; }
+        return 0==_outstanding;
+    }
+
+
+    /*
+     * Schedule the timer for the earliest deadline, unless it is already
+     * due to fire sooner. Deadlines that move later are picked up when the
+     * timer fires.
+     */
+    private void arm() {
+        if (null==_ctx || _timedOut) { return; }
+        final long deadline = Math.min(readDeadline(), writeDeadline());
+        if (NONE==deadline) { return; }
+        if (null!=_timeout && _fireAt-deadline<=0) { return; }
+
+        if (null!=_timeout) { _timeout.cancel(); }
+        _fireAt = deadline;
+        _timeout =
+            _timer.newTimeout(
+                this,
+                Math.max(0, deadline-System.nanoTime()),
+                TimeUnit.NANOSECONDS);
+    }
+
+
+    private static boolean expired(final long deadline, final long now) {
+        return NONE!=deadline && now-deadline>=0;
+    }
+
+
+    private long writeDeadline() {
+        return (_pendingWrites>0 && _write>0) ? _lastWrite+_write : NONE;
+    }
+
+
+    private long readDeadline() {
+        if (_reading && _inBody) {
+            return (_body>0) ? _lastRead+_body : NONE;
+        } else if (_reading) {
+            return (_header>0) ? _headStart+_header : NONE;
+        } else if (0==_outstanding && 0==_pendingWrites) {
+            return (_idle>0) ? _lastActivity+_idle : NONE;
+        }
+        return NONE;
+    }
+}
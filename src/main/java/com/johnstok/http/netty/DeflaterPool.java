@@ -0,0 +1,110 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * A bounded pool of idle {@link BodyDeflater}s shared by a server's
+ * connections.
+ * <p>A connection takes a deflater when a compressed body starts and gives
+ * it back when the body finishes or the connection closes, so the number
+ * of Deflaters, and their native memory, follows the number of bodies
+ * being compressed at once rather than the number of open connections.
+ * Deflaters given back while the pool is full, or after it is closed, are
+ * ended.
+ *
+ * @author Keith Webster Johnston.
+ */
+final class DeflaterPool {
+
+    private final int _maxIdle;
+    private final List<BodyDeflater> _idle;
+    private boolean _closed;
+
+
+    /**
+     * Constructor.
+     *
+     * @param maxIdle The maximum number of idle deflaters to keep.
+     */
+    DeflaterPool(final int maxIdle) {
+        if (maxIdle<0) {
+            throw new IllegalArgumentException(
+                "Idle deflaters must not be negative: "+maxIdle);
+        }
+        _maxIdle = maxIdle;
+        _idle = new ArrayList<BodyDeflater>(maxIdle);
+    }
+
+
+    /**
+     * Take a deflater from the pool, creating one if none is idle.
+     *
+     * @return The deflater.
+     */
+    synchronized BodyDeflater take() {
+        final int size = _idle.size();
+        return (0==size) ? new BodyDeflater() : _idle.remove(size-1);
+    }
+
+
+    /**
+     * Give a deflater back to the pool.
+     * <p>The caller must not use the deflater afterwards.
+     *
+     * @param deflater The deflater.
+     */
+    void give(final BodyDeflater deflater) {
+        synchronized (this) {
+            if (!_closed && _idle.size()<_maxIdle) {
+                _idle.add(deflater);
+                return;
+            }
+        }
+        deflater.end();
+    }
+
+
+    /**
+     * Query the number of idle deflaters.
+     *
+     * @return The number of deflaters in the pool.
+     */
+    synchronized int getIdleCount() {
+        return _idle.size();
+    }
+
+
+    /**
+     * End the idle deflaters, and any given back later.
+     */
+    void close() {
+        final List<BodyDeflater> idle;
+        synchronized (this) {
+            _closed = true;
+            idle = new ArrayList<BodyDeflater>(_idle);
+            _idle.clear();
+        }
+        for (final BodyDeflater deflater : idle) { deflater.end(); }
+    }
+}
@@ -19,6 +19,7 @@
  *---------------------------------------------------------------------------*/
 package com.johnstok.http.netty;
 
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.jboss.netty.channel.ChannelDownstreamHandler;
 import org.jboss.netty.channel.ChannelEvent;
@@ -28,7 +29,7 @@ import org.jboss.netty.channel.ChannelUpstreamHandler;
 
 
 /**
- * Channel handler that logs {@link ChannelStateEvent}s.
+ * Channel handler that logs {@link ChannelStateEvent}s at level FINE.
  *
  * @author Keith Webster Johnston.
  */
@@ -43,7 +44,9 @@ public class EventLoggingHandler
     @Override
     public void handleUpstream(final ChannelHandlerContext ctx,
                                final ChannelEvent e) {
-        if (e instanceof ChannelStateEvent) { logger.info(e.toString()); }
+        if (e instanceof ChannelStateEvent && logger.isLoggable(Level.FINE)) {
+            logger.fine(e.toString());
+        }
         ctx.sendUpstream(e);
     }
 
@@ -51,7 +54,9 @@ public class EventLoggingHandler
     @Override
     public void handleDownstream(final ChannelHandlerContext ctx,
                                  final ChannelEvent e) {
-        if (e instanceof ChannelStateEvent) { logger.info(e.toString()); }
+        if (e instanceof ChannelStateEvent && logger.isLoggable(Level.FINE)) {
+            logger.fine(e.toString());
+        }
         ctx.sendDownstream(e);
     }
 }
@@ -0,0 +1,193 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * What the server observed of a single request and its response.
+ * <p>The response body may be written from several threads, so the byte
+ * count is updated atomically.
+ *
+ * @author Keith Webster Johnston.
+ */
+final class Exchange {
+
+    private final String _method;
+    private final String _uri;
+    private final SocketAddress _remoteAddress;
+    private final long _startNanos;
+    private final ExchangeObserver _observer;
+    private final AtomicLong _bytesOut = new AtomicLong();
+    private final AtomicBoolean _complete = new AtomicBoolean();
+    private volatile int _status;
+    private volatile long _headNanos;
+    private volatile long _endNanos;
+
+
+    /**
+     * Constructor.
+     *
+     * @param method        The request method.
+     * @param uri           The request URI.
+     * @param remoteAddress The address of the client.
+     * @param startNanos    When the request was dispatched, per
+     *  {@link System#nanoTime()}.
+     * @param observer      Notified when the exchange completes.
+     */
+    Exchange(final String method,
+             final String uri,
+             final SocketAddress remoteAddress,
+             final long startNanos,
+             final ExchangeObserver observer) {
+        _method = method;
+        _uri = uri;
+        _remoteAddress = remoteAddress;
+        _startNanos = startNanos;
+        _observer = observer;
+    }
+
+
+    /**
+     * Record the head of the response being written.
+     *
+     * @param status The response status code.
+     */
+    void headWritten(final int status) {
+        _status = status;
+        _headNanos = System.nanoTime();
+    }
+
+
+    /**
+     * Record bytes written to the response body.
+     *
+     * @param count The number of bytes.
+     */
+    void bodyWritten(final long count) {
+        _bytesOut.addAndGet(count);
+    }
+
+
+    /**
+     * Notify the observer that the exchange has begun.
+     */
+    void begin() {
+        _observer.onBegin(this);
+    }
+
+
+    /**
+     * Record the response being completely written, or failing, and notify
+     * the observer. Only the first call has any effect.
+     *
+     * @param success False if the response could not be written in full.
+     */
+    void complete(final boolean success) {
+        if (!_complete.compareAndSet(false, true)) { return; }
+        _endNanos = System.nanoTime();
+        _observer.onComplete(this, success);
+    }
+
+
+    /**
+     * Query whether the exchange has completed.
+     *
+     * @return True if {@link #complete(boolean)} has been called.
+     */
+    boolean isComplete() {
+        return _complete.get();
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The request method.
+     */
+    String getMethod() {
+        return _method;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The request URI.
+     */
+    String getUri() {
+        return _uri;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The address of the client; may be NULL.
+     */
+    SocketAddress getRemoteAddress() {
+        return _remoteAddress;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The response status code, or 0 if no head was written.
+     */
+    int getStatus() {
+        return _status;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The number of response body bytes written.
+     */
+    long getBytesOut() {
+        return _bytesOut.get();
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return Nanoseconds from dispatch until the response head was written,
+     *  or -1 if no head was written.
+     */
+    long getHeadLatencyNanos() {
+        return (0==_headNanos) ? -1 : _headNanos-_startNanos;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return Nanoseconds from dispatch until the response was completely
+     *  written.
+     */
+    long getLatencyNanos() {
+        return _endNanos-_startNanos;
+    }
+}
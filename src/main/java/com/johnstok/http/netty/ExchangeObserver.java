@@ -0,0 +1,56 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+
+/**
+ * Notified as each request/response exchange begins and completes.
+ * <p>Observers are called on I/O threads and must not block.
+ *
+ * @author Keith Webster Johnston.
+ */
+interface ExchangeObserver {
+
+    /** An observer that ignores every exchange. */
+    ExchangeObserver NONE = new ExchangeObserver() {
+        @Override public void onBegin(final Exchange exchange) { /* No Op */ }
+        @Override public void onComplete(final Exchange exchange,
+                                         final boolean success) { /* No Op */ }
+    };
+
+
+    /**
+     * Called as a request is dispatched.
+     *
+     * @param exchange The new exchange.
+     */
+    void onBegin(Exchange exchange);
+
+
+    /**
+     * Called once the response has been written, or has failed.
+     * <p>A response that is still incomplete when its connection closes is
+     * reported as failed.
+     *
+     * @param exchange The completed exchange.
+     * @param success  False if the response could not be written in full.
+     */
+    void onComplete(Exchange exchange, boolean success);
+}
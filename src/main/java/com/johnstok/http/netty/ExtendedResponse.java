@@ -0,0 +1,162 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+import java.util.Map;
+import com.johnstok.http.async.Response;
+
+
+/**
+ * Additional response operations supported by the Netty server.
+ * <p>Every {@link Response} passed to {@code Request#onBegin} by the Netty
+ * server implements this interface.
+ *
+ * @author Keith Webster Johnston.
+ */
+public interface ExtendedResponse
+    extends
+        Response {
+
+    /**
+     * Write the response headers, followed by a pre-encoded block.
+     * <p>The block's bytes are written as-is, after the response's own
+     * headers and before the blank line that ends the head. A header present
+     * in both is sent twice.
+     *
+     * @param block   The shared block of headers.
+     * @param headers The headers specific to this response.
+     */
+    void writeHeaders(HeaderBlock block,
+                      Map<String, ? extends List<String>> headers);
+
+
+    /**
+     * Set the compression level for this response.
+     * <p>The body is compressed only if the client accepts gzip or deflate,
+     * the response has no content encoding of its own, its content type is
+     * not already compressed and any declared length is at least the
+     * server's threshold. Compressed data may be held by the compressor
+     * until enough has accumulated; {@link #flush()} sends what has been
+     * written so far. Defaults to the server's configured level.
+     *
+     * @param level The level, from 1 (fastest) to 9 (smallest), or 0 to
+     *  disable compression.
+     *
+     * @throws IllegalStateException If the headers have been written.
+     */
+    void setCompressionLevel(int level);
+
+
+    /**
+     * Write a region of a file to the response body.
+     * <p>Where the pipeline allows it the file is sent with zero-copy
+     * (sendfile); otherwise it is read and written in chunks. The file is
+     * closed once it has been written.
+     *
+     * @param file     The file to write.
+     * @param position The offset of the first byte to write.
+     * @param count    The number of bytes to write.
+     *
+     * @throws IOException If the file cannot be opened.
+     */
+    void writeBody(File file, long position, long count) throws IOException;
+
+
+    /**
+     * Write the contents of a stream to the response body.
+     * <p>The stream is read lazily, only as fast as the connection can
+     * accept data, and is closed once it has been written. Reads happen on
+     * the connection's I/O thread so the stream should not block for long.
+     *
+     * @param in The stream to write.
+     */
+    void writeBody(InputStream in);
+
+
+    /**
+     * Write the contents of a channel to the response body.
+     * <p>The channel is read lazily, only as fast as the connection can
+     * accept data, and is closed once it has been written.
+     *
+     * @param in The channel to write.
+     */
+    void writeBody(ReadableByteChannel in);
+
+
+    /**
+     * Write any buffered body data to the connection.
+     * <p>Small body writes are coalesced and only sent once the buffer is
+     * full or the response ends; a producer that needs data delivered
+     * promptly should call this method. A compressed body is flushed
+     * through the compressor too, at a small cost in compression.
+     */
+    void flush();
+
+
+    /**
+     * Query whether the response can accept more data without queuing
+     * beyond the high water mark.
+     * <p>A producer that writes the body in pieces should stop while this
+     * returns false and resume from {@link #whenWritable(Runnable)}. A
+     * pipelined response waiting behind earlier responses is buffered in
+     * memory; it becomes unwritable once its buffered body passes the high
+     * water mark, until the earlier responses have been sent.
+     *
+     * @return True if the response is writable.
+     */
+    boolean isWritable();
+
+
+    /**
+     * Run a task once the response is writable.
+     * <p>The task runs immediately if the response is writable now;
+     * otherwise it runs once the connection's queued data falls below the
+     * low water mark, after any earlier responses have been sent, or once
+     * the connection closes. It runs on the thread that observes the
+     * change: the connection's I/O thread, a request thread if the server
+     * has request threads, or the thread that ended the earlier response.
+     *
+     * @param task The task to run.
+     */
+    void whenWritable(Runnable task);
+
+
+    /**
+     * Stop delivering the request body until {@link #resumeBody()} is called.
+     * <p>Reading from the connection is suspended, so a slow consumer does
+     * not have to buffer the body itself. Each call must be matched by a
+     * call to {@link #resumeBody()}.
+     */
+    void pauseBody();
+
+
+    /**
+     * Restart delivery of the request body after {@link #pauseBody()}.
+     * <p>Body data that was already read from the connection may be
+     * delivered to the request on the calling thread before this method
+     * returns.
+     */
+    void resumeBody();
+}
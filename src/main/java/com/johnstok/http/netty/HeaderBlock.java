@@ -0,0 +1,163 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+
+/**
+ * An immutable block of response headers that is validated and encoded
+ * once, then shared by any number of responses.
+ * <p>Typical uses are the headers common to every response from a resource,
+ * such as 'Content-Type', 'Cache-Control' or 'Server'. A block is written
+ * with {@link ExtendedResponse#writeHeaders(HeaderBlock, Map)}; the encoded
+ * bytes are sent as a shared buffer, alongside the response's own headers.
+ * <p>Headers that frame the message - 'Connection', 'Content-Length' and
+ * 'Transfer-Encoding' - differ per response and may not be included in a
+ * block.
+ *
+ * @author Keith Webster Johnston.
+ */
+public final class HeaderBlock {
+
+    private static final Set<String> FRAMING_HEADERS =
+        new HashSet<String>(Arrays.asList(
+            "connection",                                          //$NON-NLS-1$
+            "content-length",                                      //$NON-NLS-1$
+            "transfer-encoding"));                                 //$NON-NLS-1$
+    private static final String SEPARATORS = "()<>@,;:\\\"/[]?={} \t"; //$NON-NLS-1$
+
+    private final Map<String, List<String>> _headers;
+    private final ChannelBuffer _encoded;
+
+
+    /**
+     * Constructor.
+     *
+     * @param headers The headers in the block.
+     *
+     * @throws IllegalArgumentException If a header name or value is invalid,
+     *  or a header frames the message.
+     */
+    public HeaderBlock(final Map<String, ? extends List<String>> headers) {
+        if (null==headers) { throw new IllegalArgumentException(); }
+
+        final Map<String, List<String>> copy =
+            new LinkedHashMap<String, List<String>>();
+        final StringBuilder encoded = new StringBuilder();
+        for (final Map.Entry<String, ? extends List<String>> h : headers.entrySet()) {
+            final String name = h.getKey();
+            requireToken(name);
+            if (FRAMING_HEADERS.contains(name.toLowerCase())) {
+                throw new IllegalArgumentException(
+                    "Header may not be included in a block: "+name);
+            }
+            if (null==h.getValue()) { throw new IllegalArgumentException(); }
+            for (final String value : h.getValue()) {
+                requireFieldValue(value);
+                encoded.append(name).append(": ").append(value).append("\r\n"); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            copy.put(
+                name,
+                Collections.unmodifiableList(
+                    new ArrayList<String>(h.getValue())));
+        }
+        _headers = Collections.unmodifiableMap(copy);
+
+        try {
+            _encoded =
+                ChannelBuffers.unmodifiableBuffer(
+                    ChannelBuffers.wrappedBuffer(
+                        encoded.toString().getBytes("ISO-8859-1"))); //$NON-NLS-1$
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The headers in this block, as a read-only map.
+     */
+    public Map<String, List<String>> getHeaders() {
+        return _headers;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return A view of the encoded header lines, each terminated by CRLF.
+     *  The returned buffer shares its content with this block.
+     */
+    ChannelBuffer getEncoded() {
+        return _encoded.duplicate();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return _headers.toString();
+    }
+
+
+    private static void requireToken(final String name) {
+        if (null==name || 0==name.length()) {
+            throw new IllegalArgumentException("Invalid header name.");
+        }
+        for (int i=0; i<name.length(); i++) {
+            final char c = name.charAt(i);
+            if (c<=31 || c>=127 || SEPARATORS.indexOf(c)>=0) {
+                throw new IllegalArgumentException(
+                    "Invalid header name: "+name);
+            }
+        }
+    }
+
+
+    /*
+     * Characters up to 255 are allowed, as obs-text, and encoded as the
+     * single ISO-8859-1 byte of the same value.
+     */
+    private static void requireFieldValue(final String value) {
+        if (null==value) {
+            throw new IllegalArgumentException("Invalid header value.");
+        }
+        for (int i=0; i<value.length(); i++) {
+            final char c = value.charAt(i);
+            if ('\r'==c || '\n'==c || c>=256) {
+                throw new IllegalArgumentException(
+                    "Invalid header value: "+value);
+            }
+        }
+    }
+}
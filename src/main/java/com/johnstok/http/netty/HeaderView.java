@@ -0,0 +1,206 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import org.jboss.netty.handler.codec.http.HttpChunkTrailer;
+import org.jboss.netty.handler.codec.http.HttpMessage;
+
+
+/**
+ * A read-only map view of the headers of a Netty message.
+ * <p>Nothing is copied when the view is created. Lookups are
+ * case-insensitive and go straight to the message; a header's values are
+ * only materialised when that header is accessed. The set of header names
+ * is read from the message once, when the view is first sized or iterated,
+ * so the message's headers must not change while the view is in use.
+ *
+ * @author Keith Webster Johnston.
+ */
+abstract class HeaderView
+    extends
+        AbstractMap<String, List<String>> {
+
+    private Set<Entry<String, List<String>>> _entries;
+    private Set<String> _names;
+
+
+    /**
+     * Create a view of a message's headers.
+     *
+     * @param message The message.
+     *
+     * @return The view.
+     */
+    static HeaderView of(final HttpMessage message) {
+        return new HeaderView() {
+            @Override boolean contains(final String name) {
+                return message.containsHeader(name);
+            }
+            @Override List<String> values(final String name) {
+                return message.getHeaders(name);
+            }
+            @Override Set<String> readNames() {
+                return message.getHeaderNames();
+            }
+        };
+    }
+
+
+    /**
+     * Create a view of a trailer's headers.
+     *
+     * @param trailer The trailer.
+     *
+     * @return The view.
+     */
+    static HeaderView of(final HttpChunkTrailer trailer) {
+        return new HeaderView() {
+            @Override boolean contains(final String name) {
+                return trailer.containsHeader(name);
+            }
+            @Override List<String> values(final String name) {
+                return trailer.getHeaders(name);
+            }
+            @Override Set<String> readNames() {
+                return trailer.getHeaderNames();
+            }
+        };
+    }
+
+
+    abstract boolean contains(String name);
+
+    abstract List<String> values(String name);
+
+    abstract Set<String> readNames();
+
+
+    private Set<String> names() {  // Netty builds a new set for each call.
+        if (null==_names) { _names = readNames(); }
+        return _names;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean containsKey(final Object key) {
+        return (key instanceof String) && contains((String) key);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public List<String> get(final Object key) {
+        if (!containsKey(key)) { return null; }
+        return values((String) key);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public int size() {
+        return names().size();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public Set<Entry<String, List<String>>> entrySet() {
+        if (null==_entries) {
+            _entries = new AbstractSet<Entry<String, List<String>>>() {
+                @Override
+                public Iterator<Entry<String, List<String>>> iterator() {
+                    final Iterator<String> names = names().iterator();
+                    return new Iterator<Entry<String, List<String>>>() {
+                        @Override public boolean hasNext() {
+                            return names.hasNext();
+                        }
+                        @Override public Entry<String, List<String>> next() {
+                            final String name = names.next();
+                            return new LazyEntry(name);
+                        }
+                        @Override public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+                @Override
+                public int size() {
+                    return HeaderView.this.size();
+                }
+            };
+        }
+        return _entries;
+    }
+
+
+    /**
+     * An entry whose values are read when first requested.
+     */
+    private final class LazyEntry
+        implements
+            Entry<String, List<String>> {
+
+        private final String _name;
+        private List<String> _values;
+
+        LazyEntry(final String name) {
+            _name = name;
+        }
+
+        @Override
+        public String getKey() {
+            return _name;
+        }
+
+        @Override
+        public List<String> getValue() {
+            if (null==_values) { _values = values(_name); }
+            return _values;
+        }
+
+        @Override
+        public List<String> setValue(final List<String> value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Entry)) { return false; }
+            final Entry<?, ?> e = (Entry<?, ?>) o;
+            return _name.equals(e.getKey()) && getValue().equals(e.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return _name.hashCode() ^ getValue().hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return _name+"="+getValue();                         //$NON-NLS-1$
+        }
+    }
+}
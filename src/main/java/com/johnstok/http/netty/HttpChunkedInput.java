@@ -0,0 +1,83 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.stream.ChunkedInput;
+
+
+/**
+ * Adapts a {@link ChunkedInput} of buffers to a {@link ChunkedInput} of HTTP
+ * chunks, so that the encoder applies chunked transfer-encoding if req'd.
+ *
+ * @author Keith Webster Johnston.
+ */
+final class HttpChunkedInput
+    implements
+        ChunkedInput {
+
+    private final ChunkedInput _input;
+    private final Exchange _exchange;
+
+
+    /**
+     * Constructor.
+     *
+     * @param input    The input to adapt.
+     * @param exchange Records the number of bytes read from the input.
+     */
+    HttpChunkedInput(final ChunkedInput input, final Exchange exchange) {
+        _input = input;
+        _exchange = exchange;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean hasNextChunk() throws Exception {
+        return _input.hasNextChunk();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public Object nextChunk() throws Exception {
+        final ChannelBuffer buffer = (ChannelBuffer) _input.nextChunk();
+        // An empty chunk would be encoded as the last chunk.
+        if (null==buffer || !buffer.readable()) { return null; }
+        _exchange.bodyWritten(buffer.readableBytes());
+        return new DefaultHttpChunk(buffer);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isEndOfInput() throws Exception {
+        return _input.isEndOfInput();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() throws Exception {
+        _input.close();
+    }
+}
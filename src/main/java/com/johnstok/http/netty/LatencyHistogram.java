@@ -0,0 +1,158 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A concurrent histogram of non-negative values, such as latencies.
+ * <p>Values are counted in log-linear buckets: each power of two is split
+ * into {@value #SUB_BUCKETS} equal buckets, so a reported value is within
+ * 12.5% of the value recorded. Recording is lock-free and does not
+ * allocate. Histograms with the same layout can be merged, for example to
+ * combine several servers.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BITS = 3;
+    private static final int BUCKETS = (64-SUB_BITS+1)*SUB_BUCKETS;
+
+    private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong _count = new AtomicLong();
+    private final AtomicLong _max = new AtomicLong();
+
+
+    /**
+     * Record a value.
+     *
+     * @param value The value; negative values are recorded as 0.
+     */
+    public void record(final long value) {
+        final long v = Math.max(0, value);
+        _counts.incrementAndGet(index(v));
+        _count.incrementAndGet();
+        for (long max=_max.get(); v>max; max=_max.get()) {
+            if (_max.compareAndSet(max, v)) { break; }
+        }
+    }
+
+
+    /**
+     * Add the values recorded by another histogram to this one.
+     *
+     * @param other The histogram to merge.
+     */
+    public void merge(final LatencyHistogram other) {
+        for (int i=0; i<BUCKETS; i++) {
+            final long n = other._counts.get(i);
+            if (0==n) { continue; }
+            _counts.addAndGet(i, n);
+            _count.addAndGet(n);
+        }
+        final long v = other._max.get();
+        for (long max=_max.get(); v>max; max=_max.get()) {
+            if (_max.compareAndSet(max, v)) { break; }
+        }
+    }
+
+
+    /**
+     * Create a copy of this histogram.
+     *
+     * @return A new histogram with the values recorded so far.
+     */
+    public LatencyHistogram copy() {
+        final LatencyHistogram copy = new LatencyHistogram();
+        copy.merge(this);
+        return copy;
+    }
+
+
+    /**
+     * Query the number of values recorded.
+     *
+     * @return The number of values.
+     */
+    public long getCount() {
+        return _count.get();
+    }
+
+
+    /**
+     * Query the largest value recorded.
+     *
+     * @return The largest value, or 0 if none has been recorded.
+     */
+    public long getMax() {
+        return _max.get();
+    }
+
+
+    /**
+     * Query a percentile of the recorded values.
+     *
+     * @param percentile The percentile, from 0 to 100.
+     *
+     * @return The highest value in the bucket containing the percentile, or
+     *  0 if no value has been recorded.
+     */
+    public long getPercentile(final double percentile) {
+        if (percentile<0 || percentile>100) {
+            throw new IllegalArgumentException();
+        }
+        long total = 0;
+        for (int i=0; i<BUCKETS; i++) { total += _counts.get(i); }
+        if (0==total) { return 0; }
+
+        final long rank = Math.max(1, (long) Math.ceil(total*percentile/100));
+        long seen = 0;
+        for (int i=0; i<BUCKETS; i++) {
+            seen += _counts.get(i);
+            if (seen>=rank) { return Math.min(upperBound(i), _max.get()); }
+        }
+        return _max.get();
+    }
+
+
+    /*
+     * Values below SUB_BUCKETS have a bucket each; above that, the top
+     * SUB_BITS+1 bits of the value select the bucket.
+     */
+    private static int index(final long value) {
+        if (value<SUB_BUCKETS) { return (int) value; }
+        final int exponent = 63-Long.numberOfLeadingZeros(value);
+        final int sub = (int) (value>>>(exponent-SUB_BITS)) & (SUB_BUCKETS-1);
+        return (exponent-SUB_BITS+1)*SUB_BUCKETS+sub;
+    }
+
+
+    private static long upperBound(final int index) {
+        if (index<SUB_BUCKETS) { return index; }
+        final int exponent = index/SUB_BUCKETS+SUB_BITS-1;
+        final long sub = index%SUB_BUCKETS;
+        final long lower = (SUB_BUCKETS+sub)<<(exponent-SUB_BITS);
+        return lower+(1L<<(exponent-SUB_BITS))-1;
+    }
+}
@@ -0,0 +1,96 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.FileRegion;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+
+
+/**
+ * Records connection and byte counts in {@link ServerMetrics}.
+ * <p>The handler sits just above the admission handler, so it counts only
+ * admitted connections and sees the raw bytes read and the encoded bytes
+ * written. One instance is shared by every connection.
+ *
+ * @author Keith Webster Johnston.
+ */
+class MetricsHandler
+    extends
+        SimpleChannelHandler {
+
+    private final ServerMetrics _metrics;
+
+
+    /**
+     * Constructor.
+     *
+     * @param metrics The metrics to record in.
+     */
+    MetricsHandler(final ServerMetrics metrics) {
+        _metrics = metrics;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void channelOpen(final ChannelHandlerContext ctx,
+                            final ChannelStateEvent e) throws Exception {
+        _metrics.connectionOpened();
+        ctx.sendUpstream(e);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void channelClosed(final ChannelHandlerContext ctx,
+                              final ChannelStateEvent e) throws Exception {
+        _metrics.connectionClosed();
+        ctx.sendUpstream(e);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void messageReceived(final ChannelHandlerContext ctx,
+                                final MessageEvent e) throws Exception {
+        if (e.getMessage() instanceof ChannelBuffer) {
+            _metrics.bytesRead(((ChannelBuffer) e.getMessage()).readableBytes());
+        }
+        ctx.sendUpstream(e);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void writeRequested(final ChannelHandlerContext ctx,
+                               final MessageEvent e) throws Exception {
+        final Object message = e.getMessage();
+        if (message instanceof ChannelBuffer) {
+            _metrics.bytesWritten(((ChannelBuffer) message).readableBytes());
+        } else if (message instanceof FileRegion) {
+            _metrics.bytesWritten(((FileRegion) message).getCount());
+        }
+        ctx.sendDownstream(e);
+    }
+}
@@ -0,0 +1,54 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A thread factory that numbers the threads it creates.
+ *
+ * @author Keith Webster Johnston.
+ */
+final class NamedThreadFactory
+    implements
+        ThreadFactory {
+
+    private final AtomicInteger _count = new AtomicInteger();
+    private final String _prefix;
+
+
+    /**
+     * Constructor.
+     *
+     * @param prefix The prefix for thread names.
+     */
+    NamedThreadFactory(final String prefix) {
+        _prefix = prefix;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public Thread newThread(final Runnable r) {
+        return new Thread(r, _prefix+"-"+_count.incrementAndGet()); //$NON-NLS-1$
+    }
+}
@@ -19,18 +19,37 @@
  *---------------------------------------------------------------------------*/
 package com.johnstok.http.netty;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferFactory;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.DefaultFileRegion;
+import org.jboss.netty.channel.FileRegion;
 import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
 import org.jboss.netty.handler.codec.http.DefaultHttpChunkTrailer;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
 import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
-import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.handler.ssl.SslHandler;
+import org.jboss.netty.handler.stream.ChunkedInput;
+import org.jboss.netty.handler.stream.ChunkedNioFile;
+import org.jboss.netty.handler.stream.ChunkedNioStream;
+import org.jboss.netty.handler.stream.ChunkedStream;
 import com.johnstok.http.Syntax;
 import com.johnstok.http.Version;
 import com.johnstok.http.async.Response;
@@ -43,14 +62,15 @@ import com.johnstok.http.async.Response;
  */
 class NettyResponse
     implements
-        Response {
+        ExtendedResponse {
 
-    private static enum State { NEW, STATUS_LINE_WRITTEN, HEADERS_WRITTEN }
+    private static enum State { NEW, STATUS_LINE_WRITTEN, HEADERS_WRITTEN, ENDED }
 
     public static Logger logger =
         Logger.getLogger(NettyResponse.class.getName());
 
     private static final String EMPTY_MAP = "{}";                  //$NON-NLS-1$
+    private static final int CHUNK_SIZE = 8192;
 
 
     // TODO: The following methods should only be executed once:
@@ -59,20 +79,119 @@ class NettyResponse
     // errors. E.g. a NULL header value.
 
     private final HttpResponse _response;
-    private final Channel _channel;
+    private final ResponseSequencer _sequencer;
+    private final BodyDemand _demand;
+    private final Exchange _exchange;
+    private final int _seq;
+    private final int _bufferSize;
+    private final boolean _keepAlive;
+    private final boolean _expectContinue;
+    private final Compression _compression;
+    private int _compressionLevel;
+    private boolean _compressing;
     private State _state = State.NEW;
+    private boolean _persistent;
+    private boolean _continued;
+    private ChannelBuffer _buffer;
 
 
     /**
      * Constructor.
+     * <p>The response is not sequenced with any other response and the
+     * connection will be closed once it has been written.
      *
      * @param response The Netty response that backs this object.
      * @param channel  The Netty channel that will write bytes to the socket.
      */
     NettyResponse(final HttpResponse response,
                   final Channel channel) {
+        this(
+            response,
+            new ResponseSequencer(
+                channel, new ReadSuspender(channel), Integer.MAX_VALUE),
+            BodyDemand.NONE,
+            new Exchange(
+                null,
+                null,
+                channel.getRemoteAddress(),
+                System.nanoTime(),
+                ExchangeObserver.NONE),
+            new NettyServerConfig().getResponseBufferSize(),
+            false,
+            false,
+            Compression.NONE);
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param response       The Netty response that backs this object.
+     * @param sequencer      The sequencer that orders writes to the socket.
+     * @param demand         Controls delivery of the request body.
+     * @param exchange       Records what is written for the request.
+     * @param bufferSize     The size of the buffer for coalescing writes.
+     * @param keepAlive      True if the request allows the connection to
+     *  persist.
+     * @param expectContinue True if the client is waiting for a
+     *  '100 Continue' response before it sends the request body.
+     * @param compression    The compression the client accepts.
+     */
+    NettyResponse(final HttpResponse response,
+                  final ResponseSequencer sequencer,
+                  final BodyDemand demand,
+                  final Exchange exchange,
+                  final int bufferSize,
+                  final boolean keepAlive,
+                  final boolean expectContinue,
+                  final Compression compression) {
         _response = response;
-        _channel = channel;
+        _sequencer = sequencer;
+        _demand = demand;
+        _exchange = exchange;
+        _bufferSize = bufferSize;
+        _seq = sequencer.begin();
+        _keepAlive = keepAlive;
+        _expectContinue = expectContinue;
+        _compression = compression;
+        _compressionLevel = compression.getLevel();
+    }
+
+
+    /**
+     * Write a '100 Continue' response, unless the request has been rejected.
+     * <p>A request is rejected once its response has ended, or has a status
+     * of 400 or more; any other response may still read the body.
+     *
+     * @return True if the client may send the request body; false if the
+     *  request was rejected.
+     */
+    boolean writeContinue() {
+        if (State.ENDED==_state || isRejection()) { return false; }
+        sendContinue();
+        return true;
+    }
+
+
+    private boolean isRejection() {
+        return
+            State.NEW!=_state
+            && _response.getStatus().getCode()>=400;
+    }
+
+
+    /*
+     * The interim response must precede the final response's head, so it is
+     * sent at the latest when the head is written.
+     */
+    private synchronized void sendContinue() {
+        if (_continued) { return; }
+        _sequencer.write(
+            _seq,
+            new DefaultHttpResponse(
+                _response.getProtocolVersion(),
+                HttpResponseStatus.CONTINUE));
+        _continued = true;
     }
 
 
@@ -87,15 +206,11 @@ class NettyResponse
         requireNotNull(reasonPhrase);
         requireNotEmpty(reasonPhrase);
         // FIXME: Add reasonPhrase validation, per HTTP spec?
-        logger.info(version+Syntax.SP+statusCode+Syntax.SP+reasonPhrase);
-        _response.setProtocolVersion(
-            new HttpVersion(
-                "HTTP",                                            //$NON-NLS-1$
-                version.getMajor(),
-                version.getMinor(),
-                true));
-        _response.setStatus(
-            new HttpResponseStatus(statusCode, reasonPhrase));
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine(version+Syntax.SP+statusCode+Syntax.SP+reasonPhrase);
+        }
+        _response.setProtocolVersion(StatusLines.version(version));
+        _response.setStatus(StatusLines.status(statusCode, reasonPhrase));
         _state=State.STATUS_LINE_WRITTEN;
         // TODO: Send status line to channel now?
     }
@@ -116,6 +231,11 @@ class NettyResponse
     }
 
 
+    private void requireNotNegative(final long l) {
+        if (l<0) { throw new IllegalArgumentException(); }
+    }
+
+
     private void requireNotNull(final Object o) {
         if (null==o) { throw new IllegalArgumentException(); }
     }
@@ -124,6 +244,21 @@ class NettyResponse
     /** {@inheritDoc} */
     @Override
     public void writeHeaders(final Map<String, ? extends List<String>> headers) {
+        writeHead(null, headers);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void writeHeaders(final HeaderBlock block,
+                             final Map<String, ? extends List<String>> headers) {
+        requireNotNull(block);
+        writeHead(block, headers);
+    }
+
+
+    private void writeHead(final HeaderBlock block,
+                           final Map<String, ? extends List<String>> headers) {
         requireState(_state, State.STATUS_LINE_WRITTEN);
         requireNotNull(headers);
         for (final Map.Entry<String, ? extends List<String>> h : headers.entrySet()) {
@@ -134,39 +269,335 @@ class NettyResponse
             }
         }
 
-        logger.info((null==headers) ? EMPTY_MAP : headers.toString());
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine((null==headers) ? EMPTY_MAP : headers.toString());
+        }
 
         for (final Map.Entry<String, ? extends List<String>> h : headers.entrySet()) {
             _response.setHeader(h.getKey(), h.getValue());
         }
+        setContentEncoding(block);
+        if (_expectContinue && !isRejection()) { sendContinue(); }
+        setConnectionHeader();
 
-        _channel.write(_response); // Chunked encoding will be enabled if req'd.
+        _exchange.headWritten(_response.getStatus().getCode());
+        _sequencer.write( // Chunked encoding enabled if req'd.
+            _seq,
+            (null==block && !_compressing)
+                ? _response
+                : new ResponseHead(
+                    _response,
+                    block,
+                    (_compressing) ? _compression.getCoding() : null,
+                    _compressionLevel));
         _state=State.HEADERS_WRITTEN;
     }
 
 
+    /*
+     * A compressed body's length is not known in advance, so it is chunked
+     * where the protocol allows and delimited by closing otherwise.
+     */
+    private void setContentEncoding(final HeaderBlock block) {
+        _compressing =
+            _compressionLevel>0
+            && _compression.isCompressible(_response, block);
+        if (!_compressing) { return; }
+
+        _response.removeHeader(HttpHeaders.Names.CONTENT_LENGTH);
+        _response.setHeader(
+            HttpHeaders.Names.CONTENT_ENCODING, _compression.getCoding());
+        _response.addHeader(
+            HttpHeaders.Names.VARY, HttpHeaders.Names.ACCEPT_ENCODING);
+        if (_response.getProtocolVersion().isKeepAliveDefault()) {
+            _response.setHeader(
+                HttpHeaders.Names.TRANSFER_ENCODING,
+                HttpHeaders.Values.CHUNKED);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void setCompressionLevel(final int level) {
+        if (level<0 || level>9) { throw new IllegalArgumentException(); }
+        if (State.NEW!=_state && State.STATUS_LINE_WRITTEN!=_state) {
+            throw new IllegalStateException("Current state is: "+_state);
+        }
+        _compressionLevel = level;
+    }
+
+
+    /*
+     * A connection may only persist if both parties allow it and the client
+     * can find the end of the body without waiting for the socket to close.
+     * A client that is still waiting to send a request body cannot tell
+     * whether the next bytes it writes will be read as body or a new request.
+     */
+    private void setConnectionHeader() {
+        _persistent =
+            _keepAlive
+            && (_continued || !_expectContinue)
+            && !HttpHeaders.Values.CLOSE.equalsIgnoreCase(
+                _response.getHeader(HttpHeaders.Names.CONNECTION))
+            && (_response.isChunked()
+                || _response.containsHeader(HttpHeaders.Names.CONTENT_LENGTH));
+
+        if (!_persistent) {
+            _response.setHeader(
+                HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
+        } else if (!_response.getProtocolVersion().isKeepAliveDefault()) {
+            _response.setHeader(
+                HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+        }
+    }
+
+
     /** {@inheritDoc} */
     @Override
     public void writeBody(final ByteBuffer bytes) {
         requireState(_state, State.HEADERS_WRITTEN);
         requireNotNull(bytes);
-        logger.info("byte["+bytes.remaining()+"]"); // mark, limit
-        final HttpChunk chunk =
-            new DefaultHttpChunk(ChannelBuffers.wrappedBuffer(bytes));
-        _channel.write(chunk);              // Chunk will be unwrapped if req'd.
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("byte["+bytes.remaining()+"]"); // mark, limit
+        }
+        final int length = bytes.remaining();
+        _exchange.bodyWritten(length);
+
+        if (null!=_buffer && _buffer.writableBytes()>=length) {
+            _buffer.writeBytes(bytes.duplicate());
+        } else {
+            writeBuffered();
+            if (length>=_bufferSize) {            // Too big to be worth copying.
+                writeChunk(ChannelBuffers.wrappedBuffer(bytes));
+                return;
+            }
+            _buffer =
+                _sequencer.getChannel()
+                          .getConfig()
+                          .getBufferFactory()
+                          .getBuffer(_bufferSize);
+            _buffer.writeBytes(bytes.duplicate());
+        }
+
+        if (!_buffer.writable()) { writeBuffered(); }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void flush() {
+        writeBuffered();
+        if (_compressing && State.HEADERS_WRITTEN==_state) {
+            _sequencer.write(_seq, ResponseCompressor.FLUSH);
+        }
+    }
+
+
+    private void writeBuffered() {
+        if (null==_buffer) { return; }
+        final ChannelBuffer buffer = _buffer;
+        _buffer = null;
+        final ChannelBufferFactory factory =
+            _sequencer.getChannel().getConfig().getBufferFactory();
+        if (!(factory instanceof PooledBufferFactory)) {
+            writeChunk(buffer, null);
+        } else if (!buffer.readable()) {
+            ((PooledBufferFactory) factory).release(buffer);
+        } else {
+            // Once written, or discarded, nothing else refers to the buffer.
+            writeChunk(buffer, new ChannelFutureListener() {
+                @Override
+                public void operationComplete(final ChannelFuture future) {
+                    ((PooledBufferFactory) factory).release(buffer);
+                }
+            });
+        }
+    }
+
+
+    private void writeChunk(final ChannelBuffer buffer) {
+        writeChunk(buffer, null);
+    }
+
+
+    private void writeChunk(final ChannelBuffer buffer,
+                            final ChannelFutureListener listener) {
+        if (!buffer.readable()) { return; }  // Would be encoded as last chunk.
+        final HttpChunk chunk = new DefaultHttpChunk(buffer);
+        _sequencer.write(_seq, chunk, listener); // Unwrapped if req'd.
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void writeBody(final File file,
+                          final long position,
+                          final long count) throws IOException {
+        requireState(_state, State.HEADERS_WRITTEN);
+        requireNotNull(file);
+        requireNotNegative(position);
+        requireNotNegative(count);
+        if (logger.isLoggable(Level.FINE)) { logger.fine("file["+count+"]"); }
+        writeBuffered();
+        final FileChannel fc = new RandomAccessFile(file, "r").getChannel();
+        if (isZeroCopy()) {
+            final FileRegion region = new DefaultFileRegion(fc, position, count);
+            _exchange.bodyWritten(count);
+            _sequencer.write(_seq, region, new ChannelFutureListener() {
+                @Override
+                public void operationComplete(final ChannelFuture future) {
+                    region.releaseExternalResources();
+                }
+            });
+        } else {
+            final ChunkedInput chunks;
+            try {
+                chunks =
+                    new HttpChunkedInput(
+                        new ChunkedNioFile(fc, position, count, CHUNK_SIZE),
+                        _exchange);
+            } catch (final IOException e) {
+                fc.close();
+                throw e;
+            }
+            writeChunks(chunks);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void writeBody(final InputStream in) {
+        requireState(_state, State.HEADERS_WRITTEN);
+        requireNotNull(in);
+        logger.fine("stream");
+        writeChunks(
+            new HttpChunkedInput(new ChunkedStream(in, CHUNK_SIZE), _exchange));
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void writeBody(final ReadableByteChannel in) {
+        requireState(_state, State.HEADERS_WRITTEN);
+        requireNotNull(in);
+        logger.fine("channel");
+        writeChunks(
+            new HttpChunkedInput(
+                new ChunkedNioStream(in, CHUNK_SIZE), _exchange));
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isWritable() {
+        return _sequencer.isWritable(_seq);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void whenWritable(final Runnable task) {
+        requireNotNull(task);
+        _sequencer.whenWritable(_seq, task);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void pauseBody() {
+        _demand.pause();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void resumeBody() {
+        _demand.resume();
+    }
+
+
+    private void writeChunks(final ChunkedInput chunks) {
+        writeBuffered();
+        _sequencer.write(_seq, chunks, closeOnFailure(chunks));
+    }
+
+
+    /*
+     * A file region bypasses the encoder, so it can only be used when no
+     * chunk framing is required and nothing downstream transforms the bytes.
+     */
+    private boolean isZeroCopy() {
+        return !_response.isChunked()
+            && !_compressing
+            && null==_sequencer.getChannel().getPipeline().get(SslHandler.class);
+    }
+
+
+    /*
+     * The chunked write handler closes its input once written; inputs that
+     * are never written must be closed here.
+     */
+    private ChannelFutureListener closeOnFailure(final ChunkedInput input) {
+        return new ChannelFutureListener() {
+            @Override
+            public void operationComplete(final ChannelFuture future) {
+                if (future.isSuccess()) { return; }
+                try {
+                    input.close();
+                } catch (final Exception e) {
+                    logger.log(Level.WARNING, "Failed to close input", e);
+                }
+            }
+        };
     }
 
 
     /** {@inheritDoc} */
     @Override
     public void writeEnd(final Map<String, ? extends List<String>> trailers) {
-        logger.info((null==trailers) ? EMPTY_MAP : trailers.toString());
-        if (null==trailers) { return; }
-        final DefaultHttpChunkTrailer trailerChunk =
-            new DefaultHttpChunkTrailer();
-        for (final Map.Entry<String, ? extends List<String>> t : trailers.entrySet()) {
-            trailerChunk.setHeader(t.getKey(), t.getValue());
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine((null==trailers) ? EMPTY_MAP : trailers.toString());
         }
-        _channel.write(trailerChunk);         // Chunk will be ignored if req'd.
+        if (State.ENDED==_state) { return; }
+        if (State.HEADERS_WRITTEN!=_state) { abandon(); return; }
+        writeBuffered();
+
+        if (_response.isChunked()) {
+            final DefaultHttpChunkTrailer trailerChunk =
+                new DefaultHttpChunkTrailer();
+            if (null!=trailers) {
+                for (final Map.Entry<String, ? extends List<String>> t : trailers.entrySet()) {
+                    trailerChunk.setHeader(t.getKey(), t.getValue());
+                }
+            }
+            _sequencer.write(_seq, trailerChunk);
+        } else if (_compressing) {        // Marks the end for the compressor.
+            _sequencer.write(_seq, HttpChunk.LAST_CHUNK);
+        } // The encoder discards the last chunk of an un-chunked body.
+        _state=State.ENDED;
+        _sequencer.end(_seq, !_persistent, new ChannelFutureListener() {
+            @Override
+            public void operationComplete(final ChannelFuture future) {
+                _exchange.complete(future.isSuccess());
+            }
+        });
+    }
+
+
+    /*
+     * Ended before a head was written: the client cannot be answered, so the
+     * response's slot is ended and the connection closed once the responses
+     * ahead of it are written, rather than leaving later responses waiting.
+     */
+    private void abandon() {
+        _state=State.ENDED;
+        _sequencer.end(_seq, true, new ChannelFutureListener() {
+            @Override
+            public void operationComplete(final ChannelFuture future) {
+                _exchange.complete(false);
+            }
+        });
     }
 }
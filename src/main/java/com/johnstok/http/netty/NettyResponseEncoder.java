@@ -0,0 +1,89 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.http.HttpMessage;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+
+
+/**
+ * Encodes responses, including those with pre-encoded header blocks.
+ * <p>Standard status lines are copied from {@link StatusLines} rather than
+ * formatted for each response.
+ * <p>For a {@link ResponseHead} the response itself is encoded as normal,
+ * so the encoder tracks its transfer-encoding, and the block's shared
+ * buffer is spliced in ahead of the blank line that ends the head.
+ *
+ * @author Keith Webster Johnston.
+ */
+class NettyResponseEncoder
+    extends
+        HttpResponseEncoder {
+
+    private static final ChannelBuffer CRLF =
+        ChannelBuffers.unmodifiableBuffer(
+            ChannelBuffers.wrappedBuffer(new byte[] {'\r', '\n'}));
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected Object encode(final ChannelHandlerContext ctx,
+                            final Channel channel,
+                            final Object msg) throws Exception {
+        if (!(msg instanceof ResponseHead)) {
+            return super.encode(ctx, channel, msg);
+        }
+
+        final ResponseHead head = (ResponseHead) msg;
+        if (null==head.getBlock()) {
+            return super.encode(ctx, channel, head.getResponse());
+        }
+        final ChannelBuffer encoded =
+            (ChannelBuffer) super.encode(ctx, channel, head.getResponse());
+        return
+            ChannelBuffers.wrappedBuffer(
+                encoded.slice(                    // Without the blank line.
+                    encoded.readerIndex(), encoded.readableBytes()-2),
+                head.getBlock().getEncoded(),
+                CRLF.duplicate());
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected void encodeInitialLine(final ChannelBuffer buf,
+                                     final HttpMessage message)
+                                                          throws Exception {
+        final HttpResponse response = (HttpResponse) message;
+        final ChannelBuffer line =
+            StatusLines.encoded(
+                response.getProtocolVersion(), response.getStatus());
+        if (null==line) {
+            super.encodeInitialLine(buf, message);
+        } else {
+            buf.writeBytes(line);
+        }
+    }
+}
@@ -19,9 +19,16 @@
  *---------------------------------------------------------------------------*/
 package com.johnstok.http.netty;
 
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
@@ -33,7 +40,10 @@ import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
 import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
-import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+import org.jboss.netty.handler.stream.ChunkedWriteHandler;
+import org.jboss.netty.util.HashedWheelTimer;
 import com.johnstok.http.async.Connection;
 import com.johnstok.http.async.RequestFactory;
 import com.johnstok.http.async.Server;
@@ -51,9 +61,39 @@ public class NettyServer
         Logger.getLogger(NettyServer.class.getName());
 
     private final DefaultChannelGroup _connections = new  DefaultChannelGroup();
+    private final NettyServerConfig _config;
+    private final ServerMetrics _metrics = new ServerMetrics();
+    private final MetricsHandler _metricsHandler = new MetricsHandler(_metrics);
     private Channel _channel;
     private ServerBootstrap _bootstrap;
+    private ExecutionHandler _executionHandler;
+    private ExecutorService _virtualThreads;
+    private HashedWheelTimer _timer;
+    private AdmissionHandler _admission;
+    private DeflaterPool _deflaters;
     private Connection _connection;
+    private ObjectName _mbeanName;
+    private final Object _drained = new Object();
+
+
+    /**
+     * Constructor.
+     * <p>The server will use the default configuration.
+     */
+    public NettyServer() {
+        this(new NettyServerConfig());
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param config The server's configuration.
+     */
+    public NettyServer(final NettyServerConfig config) {
+        if (null==config) { throw new IllegalArgumentException(); }
+        _config = config;
+    }
 
 
     /** {@inheritDoc} */
@@ -65,43 +105,195 @@ public class NettyServer
         if (isListening()) {
             throw new IllegalStateException("Server is already listening.");
         }
+        if (_config.isVirtualThreads() && _config.getRequestThreadCount()>0) {
+            throw new IllegalStateException(
+                "Virtual threads cannot be combined with request threads.");
+        }
 
         _bootstrap = new ServerBootstrap(
             new NioServerSocketChannelFactory(
-                Executors.newCachedThreadPool(),
-                Executors.newCachedThreadPool()));
+                Executors.newCachedThreadPool(_config.getBossThreadFactory()),
+                Executors.newCachedThreadPool(_config.getWorkerThreadFactory()),
+                _config.getWorkerCount()));
+        _executionHandler = createExecutionHandler();
+        _virtualThreads =
+            (_config.isVirtualThreads()) ? newVirtualThreadExecutor() : null;
+        final ExecutionHandler executionHandler = _executionHandler;
+        final Executor dispatcher =
+            (null==_virtualThreads)
+                ? AsyncHttpUpstreamHandler.DIRECT
+                : _virtualThreads;
+        final ExchangeObserver observer = createObserver();
+        _timer = (hasTimeouts()) ? newTimer() : null;
+        _admission =
+            new AdmissionHandler(
+                _config.getMaxConnections(),
+                _config.getMaxConnectionsPerAddress(),
+                _config.isPauseAccepts(),
+                _metrics);
+        _deflaters =
+            new DeflaterPool(2*Runtime.getRuntime().availableProcessors());
+        final AdmissionHandler admission = _admission;
+        final DeflaterPool deflaters = _deflaters;
+        final HashedWheelTimer timer = _timer;
         _bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
             @Override  public ChannelPipeline getPipeline() {
                 final ChannelPipeline pipeline = new DefaultChannelPipeline();
+                pipeline.addLast("admission", admission);           //$NON-NLS-1$
+                pipeline.addLast("metrics", _metricsHandler);       //$NON-NLS-1$
                 pipeline.addLast("connection-handler", new SimpleChannelUpstreamHandler() {
                     @Override
                     public void channelOpen(final ChannelHandlerContext ctx, final ChannelStateEvent e) {
-                        logger.info("New connection");
+                        logger.fine("New connection");
                         _connections.add(ctx.getChannel());
                         if (null!=_connection) { _connection.onOpen(); }
+                        ctx.sendUpstream(e);
+                    }
+
+                    @Override
+                    public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e) {
+                        synchronized (_drained) { _drained.notifyAll(); }
+                        ctx.sendUpstream(e);
                     }
                 });
+                if (null!=timer) {
+                    pipeline.addLast(
+                        "timeouts",                                //$NON-NLS-1$
+                        new ConnectionTimeouts(
+                            timer,
+                            _config.getIdleTimeout(),
+                            _config.getHeaderTimeout(),
+                            _config.getBodyTimeout(),
+                            _config.getWriteTimeout()));
+                }
                 pipeline.addLast(
                     "decoder",                                     //$NON-NLS-1$
                     new HttpRequestDecoder());
+                if (_config.isRequestDecompression()) {
+                    pipeline.addLast(
+                        "inflater",                                //$NON-NLS-1$
+                        new RequestInflater(_config.getMaxInflationRatio()));
+                }
                 pipeline.addLast(
                     "encoder",                                     //$NON-NLS-1$
-                    new HttpResponseEncoder());
+                    new NettyResponseEncoder());
+                pipeline.addLast(
+                    "compressor",                                  //$NON-NLS-1$
+                    new ResponseCompressor(deflaters));
+                pipeline.addLast(
+                    "chunked-writer",                              //$NON-NLS-1$
+                    new ChunkedWriteHandler());
+                if (null!=executionHandler) {
+                    pipeline.addLast(
+                        "executor",                                //$NON-NLS-1$
+                        executionHandler);
+                }
                 pipeline.addLast(
                     "handler",                                     //$NON-NLS-1$
-                    new AsyncHttpUpstreamHandler(requestFactory));
+                    new AsyncHttpUpstreamHandler(
+                        requestFactory, _config, dispatcher, observer));
                 return pipeline;
             }
         });
+        _bootstrap.setOption(
+            "child.writeBufferLowWaterMark",                       //$NON-NLS-1$
+            Integer.valueOf(_config.getWriteBufferLowWaterMark()));
+        _bootstrap.setOption(
+            "child.writeBufferHighWaterMark",                      //$NON-NLS-1$
+            Integer.valueOf(_config.getWriteBufferHighWaterMark()));
+        _bootstrap.setOption(
+            "child.bufferFactory",                                 //$NON-NLS-1$
+            _config.getBufferFactory());
 
         _connection = connection;
         _channel = _bootstrap.bind(address);
         _connections.add(_channel);
 
+        registerMBean(address);
         logger.info("Started");
     }
 
 
+    /*
+     * Per-connection memory limits are disabled: the executor would toggle
+     * Channel#setReadable directly, overriding the handler's own suspension
+     * of reads.
+     */
+    private ExecutionHandler createExecutionHandler() {
+        if (0==_config.getRequestThreadCount()) { return null; }
+        return new ExecutionHandler(
+            new OrderedMemoryAwareThreadPoolExecutor(
+                _config.getRequestThreadCount(),
+                0,
+                0,
+                30,
+                TimeUnit.SECONDS,
+                _config.getRequestThreadFactory()));
+    }
+
+
+    private boolean hasTimeouts() {
+        return _config.getIdleTimeout()>0
+            || _config.getHeaderTimeout()>0
+            || _config.getBodyTimeout()>0
+            || _config.getWriteTimeout()>0;
+    }
+
+
+    /*
+     * One timer serves every connection; a coarse tick keeps its cost low
+     * and is ample precision for timeouts measured in seconds.
+     */
+    private HashedWheelTimer newTimer() {
+        return new HashedWheelTimer(
+            new NamedThreadFactory("async-http-timer"),            //$NON-NLS-1$
+            100,
+            TimeUnit.MILLISECONDS);
+    }
+
+
+    private ExchangeObserver createObserver() {
+        final AccessLog accessLog = _config.getAccessLog();
+        return new ExchangeObserver() {
+            @Override
+            public void onBegin(final Exchange exchange) {
+                _metrics.requestStarted();
+            }
+
+            @Override
+            public void onComplete(final Exchange exchange,
+                                   final boolean success) {
+                _metrics.requestCompleted(exchange, success);
+                if (null==accessLog) { return; }
+                accessLog.log(
+                    exchange.getMethod(),
+                    exchange.getUri(),
+                    exchange.getStatus(),
+                    exchange.getBytesOut(),
+                    exchange.getLatencyNanos(),
+                    exchange.getRemoteAddress());
+            }
+        };
+    }
+
+
+    /*
+     * Looked up reflectively so the server still runs on JVMs without
+     * virtual threads when the mode is not enabled.
+     */
+    private ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService)
+                Executors.class
+                         .getMethod("newVirtualThreadPerTaskExecutor") //$NON-NLS-1$
+                         .invoke(null);
+        } catch (final Exception e) {
+            throw new IllegalStateException(
+                "Virtual threads are not supported by this JVM.", e);
+        }
+    }
+
+
     /** {@inheritDoc} */
     @Override
     public void listen(final InetSocketAddress address,
@@ -110,13 +302,19 @@ public class NettyServer
     }
 
 
-    /** {@inheritDoc} */
+    /**
+     * {@inheritDoc}
+     * <p>If a drain timeout is configured, the server first stops accepting
+     * connections and lets requests in progress finish, for up to the
+     * timeout, before closing the connections that remain.
+     */
     @Override
     public void close() {
         logger.info("Closing");
         if (!isListening()) {
             throw new IllegalStateException("Server is not listening.");
         }
+        if (_config.getDrainTimeout()>0) { drain(_config.getDrainTimeout()); }
 
         /*
          * To shut down a service gracefully, you should do the following:
@@ -126,15 +324,74 @@ public class NettyServer
          *
          *   See http://docs.jboss.org/netty/3.2/api/org/jboss/netty/channel/socket/nio/NioServerSocketChannelFactory.html
          */
+        _admission.close();
         _connections.close().awaitUninterruptibly();
         _bootstrap.releaseExternalResources();
+        unregisterMBean();
+        if (null!=_executionHandler) {
+            _executionHandler.releaseExternalResources();
+        }
+        if (null!=_virtualThreads) {
+            _virtualThreads.shutdown();
+        }
+        if (null!=_timer) {
+            _timer.stop();
+        }
+        _deflaters.close();
         _channel = null;
         _bootstrap = null;
+        _executionHandler = null;
+        _virtualThreads = null;
+        _timer = null;
+        _admission = null;
+        _deflaters = null;
         _connection = null;
         logger.info("Closed");
     }
 
 
+    /*
+     * Stop accepting, ask every connection to close once idle, then wait
+     * for the connections to close or the deadline to pass. A connection
+     * closes once its requests have completed, including any it was still
+     * reading when the drain began.
+     */
+    private void drain(final long timeout) {
+        logger.info("Draining");
+        _admission.close(); // Free the boss if it is holding a connection.
+        _channel.close().awaitUninterruptibly();
+        for (final Channel channel : _connections) {
+            final AsyncHttpUpstreamHandler handler =
+                channel.getPipeline().get(AsyncHttpUpstreamHandler.class);
+            if (null!=handler) { handler.closeWhenIdle(); }
+        }
+
+        final long deadline =
+            System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(timeout);
+        synchronized (_drained) {
+            while (_admission.getCount()>0) {
+                final long remaining =
+                    TimeUnit.NANOSECONDS.toMillis(deadline-System.nanoTime());
+                if (remaining<=0) {
+                    logger.warning(
+                        "Drain timed out with "
+                        + _admission.getCount()
+                        + " connections open and "
+                        + _metrics.getRequestsInFlight()
+                        + " requests in flight");
+                    return;
+                }
+                try {
+                    _drained.wait(remaining);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+
     /** {@inheritDoc} */
     @Override
     public boolean isListening() {
@@ -142,7 +399,52 @@ public class NettyServer
     }
 
 
+    /**
+     * Accessor.
+     * <p>The metrics are also registered as a JMX MBean while the server is
+     * listening, named
+     * 'com.johnstok.http.netty:type=NettyServer,address=&lt;address&gt;'.
+     *
+     * @return The server's metrics.
+     */
+    public ServerMetrics getMetrics() {
+        return _metrics;
+    }
+
+
+    private void registerMBean(final InetSocketAddress address) {
+        try {
+            final ObjectName name =
+                new ObjectName(
+                    "com.johnstok.http.netty:type=NettyServer,address=" //$NON-NLS-1$
+                    + ObjectName.quote(address.toString()));
+            ManagementFactory.getPlatformMBeanServer()
+                             .registerMBean(_metrics, name);
+            _mbeanName = name;
+        } catch (final JMException e) {
+            logger.log(Level.WARNING, "Failed to register metrics MBean", e);
+        }
+    }
+
+
+    private void unregisterMBean() {
+        if (null==_mbeanName) { return; }
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                             .unregisterMBean(_mbeanName);
+        } catch (final JMException e) {
+            logger.log(Level.WARNING, "Failed to unregister metrics MBean", e);
+        }
+        _mbeanName = null;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The number of open client connections.
+     */
     public int getConnectionCount() {
-        return (isListening()) ? _connections.size()-1 : 0;
+        return (isListening()) ? _admission.getCount() : 0;
     }
 }
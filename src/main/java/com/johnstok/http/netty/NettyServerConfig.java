@@ -0,0 +1,636 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import java.util.concurrent.ThreadFactory;
+import org.jboss.netty.buffer.ChannelBufferFactory;
+import org.jboss.netty.buffer.HeapChannelBufferFactory;
+
+/**
+ * Configuration for a {@link NettyServer}.
+ * <p>Changes made after the server starts listening have no effect until it
+ * is closed and started again.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class NettyServerConfig {
+
+    private int _maxPipelinedRequests = 16;
+    private int _writeBufferLowWaterMark = 32*1024;
+    private int _writeBufferHighWaterMark = 64*1024;
+    private int _responseBufferSize = 8*1024;
+    private int _maxConnections = 0;
+    private int _maxConnectionsPerAddress = 0;
+    private boolean _pauseAccepts = false;
+    private long _idleTimeout = 60000;
+    private long _headerTimeout = 30000;
+    private long _bodyTimeout = 30000;
+    private long _writeTimeout = 60000;
+    private long _drainTimeout = 0;
+    private int _compressionLevel = 0;
+    private int _compressionThreshold = 1024;
+    private boolean _requestDecompression = false;
+    private int _maxInflationRatio = 100;
+    private int _workerCount = Runtime.getRuntime().availableProcessors()*2;
+    private int _requestThreadCount = 0;
+    private boolean _virtualThreads = false;
+    private ChannelBufferFactory _bufferFactory =
+        HeapChannelBufferFactory.getInstance();
+    private AccessLog _accessLog;
+    private ThreadFactory _bossThreadFactory =
+        new NamedThreadFactory("async-http-boss");                 //$NON-NLS-1$
+    private ThreadFactory _workerThreadFactory =
+        new NamedThreadFactory("async-http-worker");               //$NON-NLS-1$
+    private ThreadFactory _requestThreadFactory =
+        new NamedThreadFactory("async-http-request");              //$NON-NLS-1$
+
+
+    /**
+     * Accessor.
+     *
+     * @return The maximum number of outstanding responses per connection.
+     */
+    public int getMaxPipelinedRequests() {
+        return _maxPipelinedRequests;
+    }
+
+
+    /**
+     * Mutator.
+     * <p>Reading from a connection is suspended while this many of its
+     * responses are incomplete.
+     *
+     * @param maxPipelinedRequests The maximum number of outstanding responses
+     *  per connection.
+     */
+    public void setMaxPipelinedRequests(final int maxPipelinedRequests) {
+        if (maxPipelinedRequests<1) { throw new IllegalArgumentException(); }
+        _maxPipelinedRequests = maxPipelinedRequests;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The number of queued bytes at which a connection becomes
+     *  writable again.
+     */
+    public int getWriteBufferLowWaterMark() {
+        return _writeBufferLowWaterMark;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The number of queued bytes at which a connection stops being
+     *  writable.
+     */
+    public int getWriteBufferHighWaterMark() {
+        return _writeBufferHighWaterMark;
+    }
+
+
+    /**
+     * Mutator.
+     * <p>A connection stops being writable once the bytes queued for it
+     * exceed the high water mark, and becomes writable again once they fall
+     * below the low water mark.
+     *
+     * @param low  The low water mark, in bytes.
+     * @param high The high water mark, in bytes.
+     */
+    public void setWriteBufferWaterMarks(final int low, final int high) {
+        if (low<0 || high<low) { throw new IllegalArgumentException(); }
+        _writeBufferLowWaterMark = low;
+        _writeBufferHighWaterMark = high;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The size of the buffer used to coalesce response body writes.
+     */
+    public int getResponseBufferSize() {
+        return _responseBufferSize;
+    }
+
+
+    /**
+     * Mutator.
+     * <p>Body writes smaller than this are copied into a buffer that is
+     * written to the connection when full, when the response ends or when
+     * the request flushes it. Larger writes are sent without copying. A
+     * size of zero disables coalescing.
+     *
+     * @param responseBufferSize The buffer size, in bytes.
+     */
+    public void setResponseBufferSize(final int responseBufferSize) {
+        if (responseBufferSize<0) { throw new IllegalArgumentException(); }
+        _responseBufferSize = responseBufferSize;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The maximum number of open connections.
+     */
+    public int getMaxConnections() {
+        return _maxConnections;
+    }
+
+
+    /**
+     * Mutator.
+     * <p>Connections accepted beyond this limit are closed at once, or held
+     * if accepts are paused. Defaults to zero.
+     *
+     * @param maxConnections The maximum number of open connections, or zero
+     *  for no limit.
+     */
+    public void setMaxConnections(final int maxConnections) {
+        if (maxConnections<0) { throw new IllegalArgumentException(); }
+        _maxConnections = maxConnections;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The maximum number of open connections from one client
+     *  address.
+     */
+    public int getMaxConnectionsPerAddress() {
+        return _maxConnectionsPerAddress;
+    }
+
+
+    /**
+     * Mutator.
+     * <p>Connections from an address beyond this limit are always closed at
+     * once. Defaults to zero.
+     *
+     * @param maxConnectionsPerAddress The maximum number of open connections
+     *  from one client address, or zero for no limit.
+     */
+    public void setMaxConnectionsPerAddress(final int maxConnectionsPerAddress) {
+        if (maxConnectionsPerAddress<0) { throw new IllegalArgumentException(); }
+        _maxConnectionsPerAddress = maxConnectionsPerAddress;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return True if accepts pause while the server is at its connection
+     *  limit.
+     */
+    public boolean isPauseAccepts() {
+        return _pauseAccepts;
+    }
+
+
+    /**
+     * Mutator.
+     * <p>When enabled, a connection accepted beyond the maximum is held until
+     * another closes, and no further connections are accepted meanwhile;
+     * they queue in the operating system's backlog. When disabled such a
+     * connection is closed at once. Defaults to false.
+     *
+     * @param pauseAccepts True to pause accepts at the connection limit.
+     */
+    public void setPauseAccepts(final boolean pauseAccepts) {
+        _pauseAccepts = pauseAccepts;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The idle timeout, in milliseconds.
+     */
+    public long getIdleTimeout() {
+        return _idleTimeout;
+    }
+
+
+    /**
+     * Mutator.
+     * <p>A connection is closed once it has neither read nor written
+     * anything for this long while no request is being read and no response
+     * is outstanding. Defaults to 60 seconds.
+     *
+     * @param idleTimeout The timeout, in milliseconds, or zero to disable it.
+     */
+    public void setIdleTimeout(final long idleTimeout) {
+        if (idleTimeout<0) { throw new IllegalArgumentException(); }
+        _idleTimeout = idleTimeout;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The request header timeout, in milliseconds.
+     */
+    public long getHeaderTimeout() {
+        return _headerTimeout;
+    }
+
+
+    /**
+     * Mutator.
+     * <p>The request line and headers must be read completely within this
+     * time of their first byte arriving. Defaults to 30 seconds.
+     *
+     * @param headerTimeout The timeout, in milliseconds, or zero to disable
+     *  it.
+     */
+    public void setHeaderTimeout(final long headerTimeout) {
+        if (headerTimeout<0) { throw new IllegalArgumentException(); }
+        _headerTimeout = headerTimeout;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The request body timeout, in milliseconds.
+     */
+    public long getBodyTimeout() {
+        return _bodyTimeout;
+    }
+
+
+    /**
+     * Mutator.
+     * <p>The maximum gap between reads while a chunked request body is
+     * being read. Time during which the request has paused its body is not
+     * counted. Defaults to 30 seconds.
+     *
+     * @param bodyTimeout The timeout, in milliseconds, or zero to disable it.
+     */
+    public void setBodyTimeout(final long bodyTimeout) {
+        if (bodyTimeout<0) { throw new IllegalArgumentException(); }
+        _bodyTimeout = bodyTimeout;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The write timeout, in milliseconds.
+     */
+    public long getWriteTimeout() {
+        return _writeTimeout;
+    }
+
+
+    /**
+     * Mutator.
+     * <p>The maximum gap between completed writes while data is queued for
+     * a connection, for example because the client has stopped reading.
+     * Defaults to 60 seconds.
+     *
+     * @param writeTimeout The timeout, in milliseconds, or zero to disable
+     *  it.
+     */
+    public void setWriteTimeout(final long writeTimeout) {
+        if (writeTimeout<0) { throw new IllegalArgumentException(); }
+        _writeTimeout = writeTimeout;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The number of I/O worker threads.
+     */
+    public int getWorkerCount() {
+        return _workerCount;
+    }
+
+
+    /**
+     * Mutator.
+     * <p>Each connection is served by one worker thread for its lifetime.
+     * Defaults to twice the number of available processors.
+     *
+     * @param workerCount The number of I/O worker threads.
+     */
+    public void setWorkerCount(final int workerCount) {
+        if (workerCount<1) { throw new IllegalArgumentException(); }
+        _workerCount = workerCount;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The number of threads that run request callbacks.
+     */
+    public int getRequestThreadCount() {
+        return _requestThreadCount;
+    }
+
+
+    /**
+     * Mutator.
+     * <p>When non-zero, request callbacks run on a dedicated pool of this
+     * size instead of the I/O worker threads, so a request that blocks does
+     * not stall other connections. Callbacks for a connection still run one
+     * at a time, in order. Defaults to zero.
+     *
+     * @param requestThreadCount The number of threads, or zero to run
+     *  callbacks on the I/O threads.
+     */
+    public void setRequestThreadCount(final int requestThreadCount) {
+        if (requestThreadCount<0) { throw new IllegalArgumentException(); }
+        _requestThreadCount = requestThreadCount;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The default response compression level.
+     */
+    public int getCompressionLevel() {
+        return _compressionLevel;
+    }
+
+
+    /**
+     * Mutator.
+     * <p>Responses are compressed with gzip or deflate, as the client
+     * accepts, at this level unless the request chooses otherwise with
+     * {@link ExtendedResponse#setCompressionLevel(int)}. Defaults to zero.
+     *
+     * @param compressionLevel The level, from 1 (fastest) to 9 (smallest),
+     *  or zero to compress only where a request asks for it.
+     */
+    public void setCompressionLevel(final int compressionLevel) {
+        if (compressionLevel<0 || compressionLevel>9) {
+            throw new IllegalArgumentException();
+        }
+        _compressionLevel = compressionLevel;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The smallest declared body length that is compressed.
+     */
+    public int getCompressionThreshold() {
+        return _compressionThreshold;
+    }
+
+
+    /**
+     * Mutator.
+     * <p>Responses that declare a 'Content-Length' below this are sent
+     * uncompressed. Responses of unknown length are always eligible.
+     * Defaults to 1024 bytes.
+     *
+     * @param compressionThreshold The threshold, in bytes.
+     */
+    public void setCompressionThreshold(final int compressionThreshold) {
+        if (compressionThreshold<0) { throw new IllegalArgumentException(); }
+        _compressionThreshold = compressionThreshold;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return True if compressed request bodies are inflated.
+     */
+    public boolean isRequestDecompression() {
+        return _requestDecompression;
+    }
+
+
+    /**
+     * Mutator.
+     * <p>When enabled, request bodies with a 'Content-Encoding' of gzip or
+     * deflate are inflated before they reach the request, and delivered in
+     * chunks of bounded size. Defaults to false.
+     *
+     * @param requestDecompression True to inflate compressed request bodies.
+     */
+    public void setRequestDecompression(final boolean requestDecompression) {
+        _requestDecompression = requestDecompression;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The maximum ratio of inflated to compressed request body size.
+     */
+    public int getMaxInflationRatio() {
+        return _maxInflationRatio;
+    }
+
+
+    /**
+     * Mutator.
+     * <p>A request body that inflates beyond this multiple of its compressed
+     * size closes the connection, guarding against decompression bombs.
+     * Bodies that inflate to less than 64 KiB are always allowed. Defaults
+     * to 100.
+     *
+     * @param maxInflationRatio The maximum ratio.
+     */
+    public void setMaxInflationRatio(final int maxInflationRatio) {
+        if (maxInflationRatio<1) { throw new IllegalArgumentException(); }
+        _maxInflationRatio = maxInflationRatio;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The drain timeout, in milliseconds.
+     */
+    public long getDrainTimeout() {
+        return _drainTimeout;
+    }
+
+
+    /**
+     * Mutator.
+     * <p>When non-zero, closing the server first stops accepting
+     * connections and asks each connection to close once its outstanding
+     * requests are complete; requests a connection has not yet started are
+     * dropped. Connections still open after this long are closed
+     * regardless. Defaults to zero, which closes connections at once.
+     *
+     * @param drainTimeout The timeout, in milliseconds, or zero to disable
+     *  draining.
+     */
+    public void setDrainTimeout(final long drainTimeout) {
+        if (drainTimeout<0) { throw new IllegalArgumentException(); }
+        _drainTimeout = drainTimeout;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The factory for the thread that accepts connections.
+     */
+    public ThreadFactory getBossThreadFactory() {
+        return _bossThreadFactory;
+    }
+
+
+    /**
+     * Mutator.
+     *
+     * @param threadFactory The factory for the thread that accepts
+     *  connections.
+     */
+    public void setBossThreadFactory(final ThreadFactory threadFactory) {
+        if (null==threadFactory) { throw new IllegalArgumentException(); }
+        _bossThreadFactory = threadFactory;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The factory for I/O worker threads.
+     */
+    public ThreadFactory getWorkerThreadFactory() {
+        return _workerThreadFactory;
+    }
+
+
+    /**
+     * Mutator.
+     *
+     * @param threadFactory The factory for I/O worker threads.
+     */
+    public void setWorkerThreadFactory(final ThreadFactory threadFactory) {
+        if (null==threadFactory) { throw new IllegalArgumentException(); }
+        _workerThreadFactory = threadFactory;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The factory for threads that run request callbacks.
+     */
+    public ThreadFactory getRequestThreadFactory() {
+        return _requestThreadFactory;
+    }
+
+
+    /**
+     * Mutator.
+     *
+     * @param threadFactory The factory for threads that run request
+     *  callbacks.
+     */
+    public void setRequestThreadFactory(final ThreadFactory threadFactory) {
+        if (null==threadFactory) { throw new IllegalArgumentException(); }
+        _requestThreadFactory = threadFactory;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return True if request callbacks run on virtual threads.
+     */
+    public boolean isVirtualThreads() {
+        return _virtualThreads;
+    }
+
+
+    /**
+     * Mutator.
+     * <p>When enabled, request callbacks run on virtual threads, so requests
+     * may block on I/O without holding a platform thread. Callbacks for a
+     * connection still run one at a time, in order. Requires a Java runtime
+     * with virtual threads; cannot be combined with a request thread count.
+     * Defaults to false.
+     *
+     * @param virtualThreads True to run request callbacks on virtual threads.
+     */
+    public void setVirtualThreads(final boolean virtualThreads) {
+        _virtualThreads = virtualThreads;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The factory for connection buffers.
+     */
+    public ChannelBufferFactory getBufferFactory() {
+        return _bufferFactory;
+    }
+
+
+    /**
+     * Mutator.
+     * <p>The factory allocates the buffers that connections read into, that
+     * requests are decoded into, that responses are encoded into and that
+     * response bodies are coalesced in. Use
+     * {@link org.jboss.netty.buffer.DirectChannelBufferFactory} for direct
+     * buffers or a {@link PooledBufferFactory} to slice buffers from
+     * shared chunks and reuse the response body buffers once written.
+     * Defaults to heap buffers.
+     *
+     * @param bufferFactory The factory for connection buffers.
+     */
+    public void setBufferFactory(final ChannelBufferFactory bufferFactory) {
+        if (null==bufferFactory) { throw new IllegalArgumentException(); }
+        _bufferFactory = bufferFactory;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The access log; NULL if requests are not logged.
+     */
+    public AccessLog getAccessLog() {
+        return _accessLog;
+    }
+
+
+    /**
+     * Mutator.
+     * <p>An entry is recorded as each response is completely written. The
+     * server does not close the log. Defaults to NULL.
+     *
+     * @param accessLog The access log; NULL to disable access logging.
+     */
+    public void setAccessLog(final AccessLog accessLog) {
+        _accessLog = accessLog;
+    }
+}
@@ -0,0 +1,378 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jboss.netty.buffer.AbstractChannelBufferFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+
+/**
+ * A buffer factory that pools small buffers by size class.
+ * <p>Requests up to the maximum pooled size are rounded up to a power of
+ * two size class. A buffer of that class is taken from the calling thread's
+ * cache, then from a shared free list, and otherwise sliced from the current
+ * chunk of one of a fixed set of arenas, so a new buffer is a bump of an
+ * offset rather than a new array or a native allocation. Larger requests
+ * are allocated individually.
+ * <p>Netty 3 buffers are not reference counted, so a buffer is only reused
+ * once its owner hands it back with {@link #release(ChannelBuffer)}; the
+ * server does so for the buffers that coalesce response bodies, once they
+ * are written. Released buffers go to the releasing thread's cache, up to
+ * {@value #CACHE_SIZE} per size class, then to the shared free list, up to a
+ * chunk's worth per size class; any more, and any left in the cache of a
+ * thread that exits, are left to the garbage collector.
+ * <p>A buffer that is never released, such as a decoded request, is
+ * reclaimed only by the garbage collector, and keeps its whole chunk
+ * reachable until then. With direct buffers the chunk's native memory is
+ * freed only when the chunk is collected.
+ * <p>Threads are spread over the arenas by id, so the number of chunks
+ * being filled is bounded however many threads allocate.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class PooledBufferFactory
+    extends
+        AbstractChannelBufferFactory {
+
+    private static final int MIN_SIZE_CLASS = 64;
+    private static final int CACHE_SIZE = 16;
+
+    private final boolean _direct;
+    private final int _chunkSize;
+    private final int _maxPooledSize;
+    private final int _maxSizeClass;
+    private final Arena[] _arenas;
+    private final FreeList[][] _shared;
+    private final ThreadLocal<FreeList[][]> _caches =
+        new ThreadLocal<FreeList[][]>();
+    private final AtomicLong _allocations = new AtomicLong();
+    private final AtomicLong _pooledAllocations = new AtomicLong();
+    private final AtomicLong _pooledBytes = new AtomicLong();
+    private final AtomicLong _chunkAllocations = new AtomicLong();
+    private final AtomicLong _releases = new AtomicLong();
+    private final AtomicLong _reuses = new AtomicLong();
+
+
+    /**
+     * Constructor.
+     *
+     * @param direct    True to allocate direct buffers; false for heap.
+     * @param chunkSize The size of each chunk, in bytes.
+     */
+    public PooledBufferFactory(final boolean direct, final int chunkSize) {
+        if (chunkSize<MIN_SIZE_CLASS) {
+            throw new IllegalArgumentException(
+                "Chunk size must be at least "+MIN_SIZE_CLASS+" bytes.");
+        }
+        _direct = direct;
+        _chunkSize = chunkSize;
+        _maxPooledSize = Math.max(MIN_SIZE_CLASS, chunkSize/8);
+        _maxSizeClass = sizeClass(_maxPooledSize);
+        _arenas = // A power of two, so an arena is chosen with a mask.
+            new Arena[
+                Integer.highestOneBit(
+                    Runtime.getRuntime().availableProcessors())*2];
+        for (int i=0; i<_arenas.length; i++) { _arenas[i] = new Arena(); }
+        _shared = newFreeLists(0);
+    }
+
+
+    /**
+     * Constructor.
+     * <p>Creates a factory for direct buffers with 1MB chunks.
+     */
+    public PooledBufferFactory() {
+        this(true, 1024*1024);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public ChannelBuffer getBuffer(final ByteOrder order, final int capacity) {
+        if (capacity<0) {
+            throw new IllegalArgumentException(
+                "Capacity must not be negative: "+capacity);
+        }
+        _allocations.incrementAndGet();
+        if (0==capacity) { return ChannelBuffers.EMPTY_BUFFER; }
+        if (capacity>_maxPooledSize) { return allocate(order, capacity); }
+
+        final int size = sizeClass(capacity);
+        final int o = orderIndex(order);
+        final int c = classIndex(size);
+        _pooledAllocations.incrementAndGet();
+
+        ChannelBuffer buffer = null;
+        final FreeList[][] cache = _caches.get();
+        if (null!=cache) { buffer = cache[o][c].poll(); }
+        if (null==buffer) {
+            synchronized (_shared[o][c]) { buffer = _shared[o][c].poll(); }
+        }
+        if (null!=buffer) {
+            _reuses.incrementAndGet();
+        } else {
+            final Arena arena =
+                _arenas[(int) Thread.currentThread().getId() & (_arenas.length-1)];
+            buffer = arena.slice(order, o, size);
+            _pooledBytes.addAndGet(size);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+
+    /**
+     * Return a buffer to the pool for reuse.
+     * <p>The buffer must have come from this factory, and neither it nor
+     * any buffer derived from it may be used afterwards. Buffers that are
+     * not of a pooled size class are ignored.
+     *
+     * @param buffer The buffer to release.
+     */
+    public void release(final ChannelBuffer buffer) {
+        if (null==buffer) { throw new IllegalArgumentException(); }
+        final int size = buffer.capacity();
+        if (size<MIN_SIZE_CLASS
+            || size>_maxSizeClass
+            || 1!=Integer.bitCount(size)
+            || _direct!=buffer.isDirect()) {
+            return;
+        }
+        _releases.incrementAndGet();
+        final int o = orderIndex(buffer.order());
+        final int c = classIndex(size);
+
+        FreeList[][] cache = _caches.get();
+        if (null==cache) {
+            cache = newFreeLists(CACHE_SIZE);
+            _caches.set(cache);
+        }
+        if (cache[o][c].offer(buffer)) { return; }
+        synchronized (_shared[o][c]) { _shared[o][c].offer(buffer); }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public ChannelBuffer getBuffer(final ByteOrder order,
+                                   final byte[] array,
+                                   final int offset,
+                                   final int length) {
+        if (null==array) { throw new IllegalArgumentException(); }
+        final ChannelBuffer buffer = getBuffer(order, length);
+        buffer.writeBytes(array, offset, length);
+        return buffer;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public ChannelBuffer getBuffer(final ByteBuffer nioBuffer) {
+        if (!nioBuffer.isReadOnly() && _direct==nioBuffer.isDirect()) {
+            return ChannelBuffers.wrappedBuffer(nioBuffer);
+        }
+        final ChannelBuffer buffer =
+            getBuffer(nioBuffer.order(), nioBuffer.remaining());
+        final int position = nioBuffer.position();
+        buffer.writeBytes(nioBuffer);
+        nioBuffer.position(position);
+        return buffer;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return True if this factory allocates direct buffers.
+     */
+    public boolean isDirect() {
+        return _direct;
+    }
+
+
+    /**
+     * Query the number of buffers allocated by this factory.
+     *
+     * @return The total number of buffers allocated.
+     */
+    public long getAllocationCount() {
+        return _allocations.get();
+    }
+
+
+    /**
+     * Query the number of buffers of a pooled size class handed out.
+     *
+     * @return The number of buffers served from the pool.
+     */
+    public long getPooledAllocationCount() {
+        return _pooledAllocations.get();
+    }
+
+
+    /**
+     * Query the number of bytes sliced from chunks, after rounding to size
+     * classes.
+     *
+     * @return The number of bytes sliced from chunks.
+     */
+    public long getPooledBytes() {
+        return _pooledBytes.get();
+    }
+
+
+    /**
+     * Query the number of chunks allocated by this factory.
+     *
+     * @return The number of chunks allocated.
+     */
+    public long getChunkCount() {
+        return _chunkAllocations.get();
+    }
+
+
+    /**
+     * Query the number of buffers returned to the pool.
+     *
+     * @return The number of buffers released.
+     */
+    public long getReleaseCount() {
+        return _releases.get();
+    }
+
+
+    /**
+     * Query the number of buffers handed out again after being released.
+     *
+     * @return The number of buffers reused.
+     */
+    public long getReuseCount() {
+        return _reuses.get();
+    }
+
+
+    /**
+     * Query the number of arenas that buffers are sliced from.
+     *
+     * @return The number of arenas.
+     */
+    int getArenaCount() {
+        return _arenas.length;
+    }
+
+
+    private ChannelBuffer allocate(final ByteOrder order, final int capacity) {
+        return
+            (_direct)
+                ? ChannelBuffers.directBuffer(order, capacity)
+                : ChannelBuffers.buffer(order, capacity);
+    }
+
+
+    /*
+     * One free list per byte order and size class; a limit of zero means a
+     * chunk's worth of buffers.
+     */
+    private FreeList[][] newFreeLists(final int limit) {
+        final int classes = classIndex(_maxSizeClass)+1;
+        final FreeList[][] lists = new FreeList[2][classes];
+        for (int o=0; o<2; o++) {
+            for (int c=0; c<classes; c++) {
+                lists[o][c] =
+                    new FreeList(
+                        (0==limit)
+                            ? Math.max(1, _chunkSize/(MIN_SIZE_CLASS<<c))
+                            : limit);
+            }
+        }
+        return lists;
+    }
+
+
+    private static int orderIndex(final ByteOrder order) {
+        return (ByteOrder.BIG_ENDIAN==order) ? 0 : 1;
+    }
+
+
+    private static int classIndex(final int sizeClass) {
+        return
+            Integer.numberOfTrailingZeros(sizeClass)
+            - Integer.numberOfTrailingZeros(MIN_SIZE_CLASS);
+    }
+
+
+    private static int sizeClass(final int capacity) {
+        if (capacity<=MIN_SIZE_CLASS) { return MIN_SIZE_CLASS; }
+        return Integer.highestOneBit(capacity-1)<<1;
+    }
+
+
+    /**
+     * A bounded stack of released buffers of one size class.
+     */
+    private static final class FreeList {
+        private final List<ChannelBuffer> _buffers;
+        private final int _limit;
+
+        FreeList(final int limit) {
+            _limit = limit;
+            _buffers = new ArrayList<ChannelBuffer>(Math.min(limit, 16));
+        }
+
+        ChannelBuffer poll() {
+            final int size = _buffers.size();
+            return (0==size) ? null : _buffers.remove(size-1);
+        }
+
+        boolean offer(final ChannelBuffer buffer) {
+            if (_buffers.size()>=_limit) { return false; }
+            _buffers.add(buffer);
+            return true;
+        }
+    }
+
+
+    /**
+     * The current big and little endian chunks of one arena.
+     */
+    private final class Arena {
+        private final ChannelBuffer[] _chunks = new ChannelBuffer[2];
+        private final int[] _positions = new int[2];
+
+        synchronized ChannelBuffer slice(final ByteOrder order,
+                                         final int i,
+                                         final int size) {
+            if (null==_chunks[i] || _chunks[i].capacity()-_positions[i]<size) {
+                _chunks[i] = allocate(order, _chunkSize);
+                _positions[i] = 0;
+                _chunkAllocations.incrementAndGet();
+            }
+            final ChannelBuffer slice = _chunks[i].slice(_positions[i], size);
+            _positions[i] += size;
+            return slice;
+        }
+    }
+}
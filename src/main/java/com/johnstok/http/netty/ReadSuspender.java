@@ -0,0 +1,63 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import org.jboss.netty.channel.Channel;
+
+
+/**
+ * Suspends reading from a channel on behalf of several independent parties.
+ * <p>Reading stops on the first suspension and restarts once every
+ * suspension has been matched by a resumption.
+ *
+ * @author Keith Webster Johnston.
+ */
+final class ReadSuspender {
+
+    private final Channel _channel;
+    private int _suspensions;
+
+
+    /**
+     * Constructor.
+     *
+     * @param channel The channel to control.
+     */
+    ReadSuspender(final Channel channel) {
+        _channel = channel;
+    }
+
+
+    /**
+     * Stop reading from the channel.
+     */
+    synchronized void suspend() {
+        if (0==_suspensions++) { _channel.setReadable(false); }
+    }
+
+
+    /**
+     * Cancel an earlier call to {@link #suspend()}.
+     */
+    synchronized void resume() {
+        if (0==_suspensions) { throw new IllegalStateException(); }
+        if (0==--_suspensions) { _channel.setReadable(true); }
+    }
+}
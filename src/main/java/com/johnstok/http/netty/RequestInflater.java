@@ -0,0 +1,489 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+
+
+/**
+ * Inflates request bodies sent with a 'Content-Encoding' of gzip or
+ * deflate.
+ * <p>The body is inflated as it arrives and passed on as chunks of at most
+ * {@value #CHUNK_SIZE} bytes; a request whose body arrived whole is
+ * converted to a chunked request, so its body is delivered the same way.
+ * The request's 'Content-Encoding' and 'Content-Length' headers are
+ * removed. Requests with other content codings are passed on untouched.
+ * <p>A body that inflates to more than the maximum ratio of its compressed
+ * size, or that is malformed, closes the connection.
+ * <p>Inflation stops while the connection's handler is not ready for more
+ * messages, because its request has paused or its backlog is full; the
+ * unread input stays in the Inflater, and later messages are held back,
+ * until the handler is ready again.
+ * <p>One instance is created per connection; its Inflaters are reused for
+ * every request on the connection.
+ *
+ * @author Keith Webster Johnston.
+ */
+class RequestInflater
+    extends
+        SimpleChannelUpstreamHandler {
+
+    public static Logger logger =
+        Logger.getLogger(RequestInflater.class.getName());
+    private static final ThrottledLog ERRORS = new ThrottledLog(logger, 10000);
+
+    private static enum Phase { HEADER, BODY, TRAILER, DONE }
+
+    static final int CHUNK_SIZE = 8192;
+    private static final int MAX_HEADER = 8192;
+    private static final long MIN_LIMIT = 64*1024;
+    private static final int FHCRC = 0x02;
+    private static final int FEXTRA = 0x04;
+    private static final int FNAME = 0x08;
+    private static final int FCOMMENT = 0x10;
+
+    private final int _maxRatio;
+    private final byte[] _scratch = new byte[CHUNK_SIZE];
+    private Inflater _wrapped;
+    private Inflater _raw;
+    private Inflater _inflater;
+    private Phase _phase;
+    private boolean _gzip;
+    private boolean _inflating;
+    private boolean _discarding;
+    private ChannelBuffer _pending;
+    private final CRC32 _crc = new CRC32();
+    private final Queue<MessageEvent> _held = new LinkedList<MessageEvent>();
+    private long _in;
+    private long _out;
+    private ChannelHandlerContext _ctx;
+    private AsyncHttpUpstreamHandler _handler;
+    private boolean _waiting;
+    private ChannelBuffer _input;
+    private HttpChunk _last;
+
+
+    /**
+     * Constructor.
+     *
+     * @param maxRatio The maximum ratio of inflated to compressed size.
+     */
+    RequestInflater(final int maxRatio) {
+        _maxRatio = maxRatio;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void channelOpen(final ChannelHandlerContext ctx,
+                            final ChannelStateEvent e) {
+        final AsyncHttpUpstreamHandler handler =
+            ctx.getPipeline().get(AsyncHttpUpstreamHandler.class);
+        synchronized (this) {
+            _ctx = ctx;
+            _handler = handler;
+        }
+        if (null!=handler) {
+            handler.setReadyListener(new Runnable() {
+                @Override public void run() { resume(); }
+            });
+        }
+        ctx.sendUpstream(e);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void messageReceived(final ChannelHandlerContext ctx,
+                                             final MessageEvent e) {
+        if (_waiting) {
+            _held.add(e);
+        } else {
+            receive(ctx, e);
+        }
+    }
+
+
+    /*
+     * Continue inflating once the handler is ready, then pass on any
+     * messages held back meanwhile.
+     */
+    private synchronized void resume() {
+        if (!_waiting) { return; }
+        _waiting = false;
+        final ChannelBuffer in = _input;
+        final HttpChunk last = _last;
+        _input = null;
+        _last = null;
+        if (!continueBody(_ctx, in)) { return; }
+        if (_waiting) {
+            _input = in;
+            _last = last;
+            return;
+        }
+        if (null!=last) { end(_ctx, last); }
+        while (!_waiting && !_held.isEmpty()) { receive(_ctx, _held.poll()); }
+    }
+
+
+    private void receive(final ChannelHandlerContext ctx,
+                         final MessageEvent e) {
+        final Object o = e.getMessage();
+
+        if (o instanceof HttpRequest) {
+            final HttpRequest request = (HttpRequest) o;
+            _discarding = false;
+            if (!begin(request.getHeader(HttpHeaders.Names.CONTENT_ENCODING))) {
+                ctx.sendUpstream(e);
+                return;
+            }
+            request.removeHeader(HttpHeaders.Names.CONTENT_ENCODING);
+            request.removeHeader(HttpHeaders.Names.CONTENT_LENGTH);
+            if (request.isChunked()) {
+                ctx.sendUpstream(e);
+                return;
+            }
+
+            final ChannelBuffer content = request.getContent();
+            request.removeHeader(HttpHeaders.Names.EXPECT); // Body arrived.
+            request.setContent(ChannelBuffers.EMPTY_BUFFER);
+            request.setChunked(true);
+            ctx.sendUpstream(e);
+            if (inflate(ctx, content)) { endWhenInflated(ctx, HttpChunk.LAST_CHUNK); }
+
+        } else if (o instanceof HttpChunk && (_inflating || _discarding)) {
+            final HttpChunk chunk = (HttpChunk) o;
+            if (_discarding) {
+                _discarding = !chunk.isLast();
+            } else if (inflate(ctx, chunk.getContent()) && chunk.isLast()) {
+                endWhenInflated(ctx, chunk);
+            }
+
+        } else {
+            ctx.sendUpstream(e);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void channelClosed(final ChannelHandlerContext ctx,
+                              final ChannelStateEvent e) {
+        synchronized (this) {
+            if (null!=_wrapped) { _wrapped.end(); }
+            if (null!=_raw) { _raw.end(); }
+            _wrapped = null;
+            _raw = null;
+            _inflater = null;
+            _inflating = false;
+            _waiting = false;
+            _input = null;
+            _last = null;
+            _held.clear();
+        }
+        ctx.sendUpstream(e);
+    }
+
+
+    private boolean begin(final String coding) {
+        if (null==coding) { return false; }
+        final String c = coding.trim().toLowerCase();
+        if (Compression.GZIP.equals(c) || "x-gzip".equals(c)) {   //$NON-NLS-1$
+            _gzip = true;
+        } else if (Compression.DEFLATE.equals(c)) {
+            _gzip = false;
+        } else {
+            return false;
+        }
+        _inflating = true;
+        _phase = Phase.HEADER;
+        _pending = ChannelBuffers.dynamicBuffer(64);
+        _inflater = null;
+        _crc.reset();
+        _in = 0;
+        _out = 0;
+        return true;
+    }
+
+
+    /*
+     * Returns false if the body was rejected and the connection closed.
+     */
+    private boolean inflate(final ChannelHandlerContext ctx,
+                            final ChannelBuffer content) {
+        _in += content.readableBytes();
+        ChannelBuffer in = content;
+        try {
+            if (Phase.HEADER==_phase) {
+                _pending.writeBytes(in);
+                final int length = headerLength(_pending);
+                if (length<0) {
+                    if (_pending.readableBytes()>MAX_HEADER) {
+                        return fail(ctx, "Request body header too long", null);
+                    }
+                    return true;
+                }
+                _pending.skipBytes(length);
+                in = _pending;
+                _pending = ChannelBuffers.dynamicBuffer(8);
+                _phase = Phase.BODY;
+            }
+            if (Phase.BODY==_phase && in.readable()) {
+                if (!inflateBody(ctx, in)) { return false; }
+                if (_waiting) {
+                    _input = in;
+                    return true;
+                }
+            }
+            return trailer(ctx, in);
+        } catch (final DataFormatException ex) {
+            return fail(ctx, "Malformed request body", ex);
+        }
+    }
+
+
+    /*
+     * Returns false if the body was rejected and the connection closed.
+     */
+    private boolean continueBody(final ChannelHandlerContext ctx,
+                                 final ChannelBuffer in) {
+        try {
+            if (!pump(ctx, in)) { return false; }
+            return (_waiting) ? true : trailer(ctx, in);
+        } catch (final DataFormatException ex) {
+            return fail(ctx, "Malformed request body", ex);
+        }
+    }
+
+
+    private boolean trailer(final ChannelHandlerContext ctx,
+                            final ChannelBuffer in) {
+        if (Phase.TRAILER==_phase) {
+            _pending.writeBytes(in);
+            if (_pending.readableBytes()>=8) {
+                if (!checkTrailer(_pending)) {
+                    return fail(ctx, "Request body checksum mismatch", null);
+                }
+                _phase = Phase.DONE;
+            }
+        }
+        return true;
+    }
+
+
+    private boolean inflateBody(final ChannelHandlerContext ctx,
+                                final ChannelBuffer in)
+                                                  throws DataFormatException {
+        final int length = in.readableBytes();
+        final byte[] bytes;
+        final int offset;
+        if (in.hasArray()) {
+            bytes = in.array();
+            offset = in.arrayOffset()+in.readerIndex();
+        } else {
+            bytes = new byte[length];
+            in.getBytes(in.readerIndex(), bytes);
+            offset = 0;
+        }
+        in.skipBytes(length);
+
+        _inflater.setInput(bytes, offset, length);
+        return pump(ctx, in);
+    }
+
+
+    /*
+     * Inflate the Inflater's input, one chunk at a time, while the handler
+     * is ready for more.
+     */
+    private boolean pump(final ChannelHandlerContext ctx,
+                         final ChannelBuffer in) throws DataFormatException {
+        final long limit = Math.max(MIN_LIMIT, _maxRatio*_in);
+        while (true) {
+            if (null!=_handler && !_handler.isReady()) {
+                _waiting = true;
+                return true;
+            }
+            final int count = _inflater.inflate(_scratch);
+            if (count>0) {
+                _out += count;
+                if (_out>limit) {
+                    return fail(ctx, "Request body inflates beyond limit", null);
+                }
+                if (_gzip) { _crc.update(_scratch, 0, count); }
+                final ChannelBuffer chunk =
+                    ctx.getChannel().getConfig().getBufferFactory().getBuffer(count);
+                chunk.writeBytes(_scratch, 0, count);
+                Channels.fireMessageReceived(ctx, new DefaultHttpChunk(chunk));
+            }
+            if (_inflater.finished()) {
+                final int remaining = _inflater.getRemaining();
+                in.readerIndex(in.writerIndex()-remaining);
+                _phase = (_gzip) ? Phase.TRAILER : Phase.DONE;
+                return true;
+            }
+            if (_inflater.needsDictionary()) {
+                throw new DataFormatException("Preset dictionary");
+            }
+            if (0==count && _inflater.needsInput()) { return true; }
+        }
+    }
+
+
+    private void endWhenInflated(final ChannelHandlerContext ctx,
+                                 final HttpChunk last) {
+        if (_waiting) {
+            _last = last;
+        } else {
+            end(ctx, last);
+        }
+    }
+
+
+    private void end(final ChannelHandlerContext ctx, final HttpChunk last) {
+        _inflating = false;
+        _pending = null;
+        if (null!=_inflater) { _inflater.reset(); }
+        _inflater = null;
+        if (Phase.DONE!=_phase) {
+            fail(ctx, "Truncated request body", null);
+            return;
+        }
+        Channels.fireMessageReceived(ctx, last);
+    }
+
+
+    private boolean fail(final ChannelHandlerContext ctx,
+                         final String message,
+                         final Exception cause) {
+        ERRORS.log(Level.WARNING, message, cause);
+        if (null!=_inflater) { _inflater.reset(); }
+        _inflater = null;
+        _inflating = false;
+        _discarding = true;
+        _pending = null;
+        _waiting = false;
+        _input = null;
+        _last = null;
+        ctx.getChannel().close();
+        return false;
+    }
+
+
+    /*
+     * Returns the number of header bytes to skip, or -1 if more bytes are
+     * needed. Chooses the Inflater once the format is known.
+     */
+    private int headerLength(final ChannelBuffer buf)
+                                                  throws DataFormatException {
+        final int start = buf.readerIndex();
+        final int available = buf.readableBytes();
+        if (available<2) { return -1; }
+
+        if (!_gzip) {
+            final int cmf = buf.getUnsignedByte(start);
+            final int flg = buf.getUnsignedByte(start+1);
+            final boolean zlib = 8==(cmf&0x0f) && 0==((cmf<<8)|flg)%31;
+            _inflater = (zlib) ? wrapped() : raw(); // Some clients omit it.
+            return 0;
+        }
+
+        if (available<10) { return -1; }
+        if (0x1f!=buf.getUnsignedByte(start)
+            || 0x8b!=buf.getUnsignedByte(start+1)
+            || 8!=buf.getUnsignedByte(start+2)) {
+            throw new DataFormatException("Not in gzip format");
+        }
+        final int flags = buf.getUnsignedByte(start+3);
+        int length = 10;
+        if (0!=(flags&FEXTRA)) {
+            if (available<length+2) { return -1; }
+            length += 2
+                + (buf.getUnsignedByte(start+length)
+                   | buf.getUnsignedByte(start+length+1)<<8);
+        }
+        if (0!=(flags&FNAME)) {
+            length = skipZeroTerminated(buf, length);
+            if (length<0) { return -1; }
+        }
+        if (0!=(flags&FCOMMENT)) {
+            length = skipZeroTerminated(buf, length);
+            if (length<0) { return -1; }
+        }
+        if (0!=(flags&FHCRC)) { length += 2; }
+        if (available<length) { return -1; }
+        _inflater = raw();
+        return length;
+    }
+
+
+    private static int skipZeroTerminated(final ChannelBuffer buf,
+                                          final int from) {
+        final int start = buf.readerIndex();
+        for (int i=from; i<buf.readableBytes(); i++) {
+            if (0==buf.getByte(start+i)) { return i+1; }
+        }
+        return -1;
+    }
+
+
+    private boolean checkTrailer(final ChannelBuffer buf) {
+        final long crc = readIntLE(buf)&0xffffffffL;
+        final long size = readIntLE(buf)&0xffffffffL;
+        return crc==_crc.getValue() && size==(_out&0xffffffffL);
+    }
+
+
+    private static int readIntLE(final ChannelBuffer buf) {
+        return buf.readUnsignedByte()
+            | buf.readUnsignedByte()<<8
+            | buf.readUnsignedByte()<<16
+            | buf.readUnsignedByte()<<24;
+    }
+
+
+    private Inflater wrapped() {
+        if (null==_wrapped) { _wrapped = new Inflater(false); }
+        return _wrapped;
+    }
+
+
+    private Inflater raw() {
+        if (null==_raw) { _raw = new Inflater(true); }
+        return _raw;
+    }
+}
@@ -0,0 +1,150 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+
+
+/**
+ * Compresses the bodies of responses marked for compression.
+ * <p>The handler sits between the encoder and the chunked write handler, so
+ * it sees each response's head followed by its body chunks, in order,
+ * whether they were written directly or read from a stream. A
+ * {@link ResponseHead} that names a content coding starts compression; its
+ * last chunk finishes it. The response has already dropped its length and
+ * declared its encoding, so the chunks are re-framed by the encoder. A
+ * {@link #FLUSH} written after the head flushes the compressed data held so
+ * far as a chunk; it goes no further down the pipeline.
+ * <p>One instance is created per connection. A deflater is taken from the
+ * server's shared {@link DeflaterPool} when a compressed response starts
+ * and given back when its body finishes or the connection closes, so an
+ * idle connection holds no Deflater.
+ *
+ * @author Keith Webster Johnston.
+ */
+class ResponseCompressor
+    extends
+        SimpleChannelHandler {
+
+    /** Written to flush the body of a compressed response. */
+    static final Object FLUSH = new Object();
+
+    private final DeflaterPool _pool;
+    private BodyDeflater _deflater;
+    private boolean _compressing;
+    private boolean _closed;
+
+
+    /**
+     * Constructor.
+     *
+     * @param pool The pool to take deflaters from.
+     */
+    ResponseCompressor(final DeflaterPool pool) {
+        if (null==pool) { throw new IllegalArgumentException(); }
+        _pool = pool;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void writeRequested(final ChannelHandlerContext ctx,
+                               final MessageEvent e) throws Exception {
+        final Object msg = e.getMessage();
+        if (msg instanceof ResponseHead) {
+            final ResponseHead head = (ResponseHead) msg;
+            synchronized (this) {
+                _compressing = null!=head.getCoding() && !_closed;
+                if (_compressing) {
+                    if (null==_deflater) { _deflater = _pool.take(); }
+                    _deflater.start(head.getCoding(), head.getLevel());
+                }
+            }
+            ctx.sendDownstream(e);
+
+        } else if (msg instanceof HttpChunk) {
+            final HttpChunk chunk = (HttpChunk) msg;
+            final ChannelBuffer compressed;
+            synchronized (this) {
+                if (!_compressing) { ctx.sendDownstream(e); return; }
+                if (chunk.isLast()) {
+                    compressed = _deflater.finish();
+                    _compressing = false;
+                    _pool.give(_deflater);
+                    _deflater = null;
+                } else {
+                    compressed = _deflater.deflate(chunk.getContent());
+                }
+            }
+            if (chunk.isLast()) {
+                if (compressed.readable()) {
+                    Channels.write(
+                        ctx,
+                        Channels.future(ctx.getChannel()),
+                        new DefaultHttpChunk(compressed));
+                }
+                ctx.sendDownstream(e);
+            } else if (compressed.readable()) {
+                Channels.write(
+                    ctx, e.getFuture(), new DefaultHttpChunk(compressed));
+            } else {                         // Held by the deflater for now.
+                e.getFuture().setSuccess();
+            }
+
+        } else if (FLUSH==msg) {
+            final ChannelBuffer flushed;
+            synchronized (this) {
+                flushed = (_compressing) ? _deflater.flush() : null;
+            }
+            if (null!=flushed && flushed.readable()) {
+                Channels.write(
+                    ctx, e.getFuture(), new DefaultHttpChunk(flushed));
+            } else {
+                e.getFuture().setSuccess();
+            }
+
+        } else {
+            ctx.sendDownstream(e);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void channelClosed(final ChannelHandlerContext ctx,
+                              final ChannelStateEvent e) throws Exception {
+        synchronized (this) {
+            _closed = true;
+            _compressing = false;
+            if (null!=_deflater) {              // Reset by its next start.
+                _pool.give(_deflater);
+                _deflater = null;
+            }
+        }
+        ctx.sendUpstream(e);
+    }
+}
@@ -0,0 +1,111 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import org.jboss.netty.handler.codec.http.HttpResponse;
+
+
+/**
+ * The head of a response whose headers include a pre-encoded
+ * {@link HeaderBlock}, or whose body is to be compressed.
+ *
+ * @author Keith Webster Johnston.
+ */
+final class ResponseHead {
+
+    private final HttpResponse _response;
+    private final HeaderBlock _block;
+    private final String _coding;
+    private final int _level;
+
+
+    /**
+     * Constructor.
+     *
+     * @param response The response; it must have no content.
+     * @param block    The block of headers to send after the response's
+     *  own headers.
+     */
+    ResponseHead(final HttpResponse response, final HeaderBlock block) {
+        this(response, block, null, 0);
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param response The response; it must have no content.
+     * @param block    The block of headers to send after the response's
+     *  own headers; may be NULL.
+     * @param coding   The content coding to compress the body with; NULL if
+     *  the body is not compressed.
+     * @param level    The compression level.
+     */
+    ResponseHead(final HttpResponse response,
+                 final HeaderBlock block,
+                 final String coding,
+                 final int level) {
+        _response = response;
+        _block = block;
+        _coding = coding;
+        _level = level;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The response.
+     */
+    HttpResponse getResponse() {
+        return _response;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The block of headers; may be NULL.
+     */
+    HeaderBlock getBlock() {
+        return _block;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The content coding to compress the body with; NULL if the
+     *  body is not compressed.
+     */
+    String getCoding() {
+        return _coding;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The compression level.
+     */
+    int getLevel() {
+        return _level;
+    }
+}
@@ -0,0 +1,415 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+
+
+/**
+ * Writes the responses for a connection in the order their requests arrived.
+ * <p>Each request is allocated a sequence number. Writes for the response at
+ * the head of the sequence go straight to the channel; writes for later
+ * responses are buffered until every earlier response has ended. Reading is
+ * suspended while the number of outstanding responses is at the limit.
+ * <p>The sequencer also holds tasks waiting for a response to become
+ * writable. The response at the head is writable while the channel is; a
+ * later response is writable until its buffered body passes the high water
+ * mark, and then not until it reaches the head.
+ * <p>Writes reach the channel while the sequencer's lock is held, so they
+ * stay in order. The lock is a {@link ReentrantLock} rather than a
+ * monitor, so a virtual thread that waits for it, or that runs the
+ * pipeline while holding it, is not pinned to its carrier thread.
+ *
+ * @author Keith Webster Johnston.
+ */
+final class ResponseSequencer {
+
+    private final Channel _channel;
+    private final ReadSuspender _reads;
+    private final int _maxPending;
+    private final long _highWaterMark;
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Map<Integer, Pending> _buffered =
+        new HashMap<Integer, Pending>();
+    private final List<Runnable> _writableTasks = new ArrayList<Runnable>();
+    private int _next;
+    private int _head;
+    private boolean _closed;
+    private boolean _suspended;
+    private ChannelFuture _lastWrite;
+
+
+    /**
+     * Constructor.
+     * <p>Responses that are not at the head may buffer without limit.
+     *
+     * @param channel    The channel responses are written to.
+     * @param reads      Suspends reading from the channel.
+     * @param maxPending The maximum number of outstanding responses.
+     */
+    ResponseSequencer(final Channel channel,
+                      final ReadSuspender reads,
+                      final int maxPending) {
+        this(channel, reads, maxPending, Long.MAX_VALUE);
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param channel       The channel responses are written to.
+     * @param reads         Suspends reading from the channel.
+     * @param maxPending    The maximum number of outstanding responses.
+     * @param highWaterMark The number of body bytes a response that is not
+     *  at the head may buffer before it is reported as unwritable.
+     */
+    ResponseSequencer(final Channel channel,
+                      final ReadSuspender reads,
+                      final int maxPending,
+                      final long highWaterMark) {
+        if (maxPending<1) { throw new IllegalArgumentException(); }
+        if (highWaterMark<1) { throw new IllegalArgumentException(); }
+        _channel = channel;
+        _reads = reads;
+        _maxPending = maxPending;
+        _highWaterMark = highWaterMark;
+    }
+
+
+    /**
+     * Allocate a sequence number for a new request.
+     *
+     * @return The sequence number of the request's response.
+     */
+    int begin() {
+        _lock.lock();
+        try {
+            final int seq = _next++;
+            if (getPending()>=_maxPending && !_suspended) {
+                _suspended = true;
+                _reads.suspend();
+            }
+            return seq;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * Write a message for a response.
+     *
+     * @param seq     The sequence number of the response.
+     * @param message The message to write.
+     */
+    void write(final int seq, final Object message) {
+        write(seq, message, null);
+    }
+
+
+    /**
+     * Write a message for a response.
+     * <p>The listener is notified when the write completes, or with a failed
+     * future if the message is discarded because the connection is closing.
+     *
+     * @param seq      The sequence number of the response.
+     * @param message  The message to write.
+     * @param listener The listener to notify; may be NULL.
+     */
+    void write(final int seq,
+               final Object message,
+               final ChannelFutureListener listener) {
+        _lock.lock();
+        try {
+            if (_closed) {
+                discard(listener);
+            } else if (seq==_head) {
+                _lastWrite = _channel.write(message);
+                if (null!=listener) { _lastWrite.addListener(listener); }
+            } else {
+                final Pending p = pending(seq);
+                p._writes.add(new Write(message, listener));
+                p._bytes += size(message);
+            }
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The channel responses are written to.
+     */
+    Channel getChannel() {
+        return _channel;
+    }
+
+
+    /**
+     * Query whether a response can accept more data.
+     *
+     * @param seq The sequence number of the response.
+     *
+     * @return True if the response is writable.
+     */
+    boolean isWritable(final int seq) {
+        _lock.lock();
+        try {
+            return (seq==_head || _closed)
+                ? _channel.isWritable()
+                : !isOverHighWaterMark(seq);
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * Run a task once a response is writable.
+     * <p>The task runs immediately if the response is writable now.
+     * Otherwise it runs once the response is at the head and the channel is
+     * writable, or the channel closes; it runs on the thread that observes
+     * the change, which may be the I/O thread, a request thread or the
+     * thread that ended the preceding response.
+     *
+     * @param seq  The sequence number of the response.
+     * @param task The task to run.
+     */
+    void whenWritable(final int seq, final Runnable task) {
+        _lock.lock();
+        try {
+            if (seq!=_head && !_closed && isOverHighWaterMark(seq)) {
+                _buffered.get(Integer.valueOf(seq))._writableTasks.add(task);
+                return;
+            } else if (!_channel.isWritable() && _channel.isOpen()) {
+                _writableTasks.add(task);
+                return;
+            }
+        } finally {
+            _lock.unlock();
+        }
+        task.run();
+    }
+
+
+    /**
+     * Run the tasks waiting for the channel, if it is now writable or closed.
+     */
+    void writabilityChanged() {
+        final List<Runnable> tasks;
+        _lock.lock();
+        try {
+            if (!_channel.isWritable() && _channel.isOpen()) { return; }
+            if (_writableTasks.isEmpty()) { return; }
+            tasks = new ArrayList<Runnable>(_writableTasks);
+            _writableTasks.clear();
+        } finally {
+            _lock.unlock();
+        }
+        for (final Runnable task : tasks) { task.run(); }
+    }
+
+
+    /**
+     * Mark a response as complete.
+     *
+     * @param seq   The sequence number of the response.
+     * @param close True if the connection must close after the response.
+     */
+    void end(final int seq, final boolean close) {
+        end(seq, close, null);
+    }
+
+
+    /**
+     * Mark a response as complete.
+     * <p>The listener is notified once the response's last write completes,
+     * or with a failed future if its writes are discarded because the
+     * connection is closing.
+     *
+     * @param seq      The sequence number of the response.
+     * @param close    True if the connection must close after the response.
+     * @param listener The listener to notify; may be NULL.
+     */
+    void end(final int seq,
+             final boolean close,
+             final ChannelFutureListener listener) {
+        final int waiting;
+        _lock.lock();
+        try {
+            if (_closed && seq!=_head) {
+                discard(listener);
+                return;
+            } else if (seq!=_head) {
+                final Pending p = pending(seq);
+                p._ended = true;
+                p._close = close;
+                p._listener = listener;
+                return;
+            }
+
+            boolean ended = true;
+            boolean mustClose = close;
+            ChannelFutureListener done = listener;
+            while (ended) {
+                complete(mustClose, done);
+                final Pending p = _buffered.remove(Integer.valueOf(_head));
+                if (null==p) { break; }
+                for (final Write w : p._writes) { write(_head, w._message, w._listener); }
+                _writableTasks.addAll(p._writableTasks); // Now the channel's.
+                ended = p._ended;
+                mustClose = p._close;
+                done = p._listener;
+            }
+
+            if (_suspended && getPending()<_maxPending && !_closed) {
+                _suspended = false;
+                _reads.resume();
+            }
+            waiting = _writableTasks.size();
+        } finally {
+            _lock.unlock();
+        }
+        if (waiting>0) { writabilityChanged(); }
+    }
+
+
+    /**
+     * Query the number of responses that have not yet ended.
+     *
+     * @return The number of outstanding responses.
+     */
+    int getPending() {
+        _lock.lock();
+        try {
+            return _next-_head;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+
+    private void complete(final boolean close,
+                          final ChannelFutureListener listener) {
+        if (null!=listener) {
+            if (null!=_lastWrite) {
+                _lastWrite.addListener(listener);
+            } else if (_closed) {
+                discard(listener);
+            } else {
+                Channels.succeededFuture(_channel).addListener(listener);
+            }
+        }
+        if (close && !_closed) {
+            _closed = true;
+            for (final Pending p : _buffered.values()) {
+                for (final Write w : p._writes) { discard(w._listener); }
+                discard(p._listener);
+                _writableTasks.addAll(p._writableTasks); // Run on close.
+            }
+            _buffered.clear();
+            if (null==_lastWrite) {
+                _channel.close();
+            } else {
+                _lastWrite.addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+        _lastWrite = null;
+        _head++;
+    }
+
+
+    private void discard(final ChannelFutureListener listener) {
+        if (null==listener) { return; }
+        Channels.failedFuture(_channel, new ClosedChannelException())
+                .addListener(listener);
+    }
+
+
+    private boolean isOverHighWaterMark(final int seq) {
+        final Pending p = _buffered.get(Integer.valueOf(seq));
+        return null!=p && p._bytes>_highWaterMark;
+    }
+
+
+    /*
+     * Only body data held in memory counts; heads are small and files and
+     * streams are read as they are written.
+     */
+    private static long size(final Object message) {
+        if (message instanceof HttpChunk) {
+            return ((HttpChunk) message).getContent().readableBytes();
+        } else if (message instanceof ChannelBuffer) {
+            return ((ChannelBuffer) message).readableBytes();
+        }
+        return 0;
+    }
+
+
+    private Pending pending(final int seq) {
+        final Integer key = Integer.valueOf(seq);
+        Pending p = _buffered.get(key);
+        if (null==p) {
+            p = new Pending();
+            _buffered.put(key, p);
+        }
+        return p;
+    }
+
+
+    /**
+     * Buffered state for a response that is not yet at the head.
+     */
+    private static final class Pending {
+        final List<Write> _writes = new ArrayList<Write>();
+        final List<Runnable> _writableTasks = new ArrayList<Runnable>();
+        long _bytes;
+        boolean _ended;
+        boolean _close;
+        ChannelFutureListener _listener;
+    }
+
+
+    /**
+     * A buffered write.
+     */
+    private static final class Write {
+        final Object _message;
+        final ChannelFutureListener _listener;
+
+        Write(final Object message, final ChannelFutureListener listener) {
+            _message = message;
+            _listener = listener;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Counters and latency histograms for a {@link NettyServer}.
+ * <p>Values accumulate for the lifetime of the server. Recording is
+ * lock-free and does not allocate.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class ServerMetrics
+    implements
+        ServerMetricsMBean {
+
+    private final AtomicLong _activeConnections = new AtomicLong();
+    private final AtomicLong _totalConnections = new AtomicLong();
+    private final AtomicLong _rejectedConnections = new AtomicLong();
+    private final AtomicLong _requests = new AtomicLong();
+    private final AtomicLong _inFlight = new AtomicLong();
+    private final AtomicLong _failed = new AtomicLong();
+    private final AtomicLong _bytesIn = new AtomicLong();
+    private final AtomicLong _bytesOut = new AtomicLong();
+    private final LatencyHistogram _firstByte = new LatencyHistogram();
+    private final LatencyHistogram _latency = new LatencyHistogram();
+
+
+    /**
+     * Record a connection being accepted.
+     */
+    void connectionOpened() {
+        _activeConnections.incrementAndGet();
+        _totalConnections.incrementAndGet();
+    }
+
+
+    /**
+     * Record a connection closing.
+     */
+    void connectionClosed() {
+        _activeConnections.decrementAndGet();
+    }
+
+
+    /**
+     * Record a connection being closed by admission control.
+     */
+    void connectionRejected() {
+        _rejectedConnections.incrementAndGet();
+    }
+
+
+    /**
+     * Record bytes read from a connection.
+     *
+     * @param count The number of bytes.
+     */
+    void bytesRead(final long count) {
+        _bytesIn.addAndGet(count);
+    }
+
+
+    /**
+     * Record bytes written to a connection.
+     *
+     * @param count The number of bytes.
+     */
+    void bytesWritten(final long count) {
+        _bytesOut.addAndGet(count);
+    }
+
+
+    /**
+     * Record a request being dispatched.
+     */
+    void requestStarted() {
+        _requests.incrementAndGet();
+        _inFlight.incrementAndGet();
+    }
+
+
+    /**
+     * Record a response completing.
+     *
+     * @param exchange The completed exchange.
+     * @param success  False if the response could not be written in full.
+     */
+    void requestCompleted(final Exchange exchange, final boolean success) {
+        _inFlight.decrementAndGet();
+        if (!success) { _failed.incrementAndGet(); }
+        final long firstByte = exchange.getHeadLatencyNanos();
+        if (firstByte>=0) { _firstByte.record(firstByte/1000); }
+        _latency.record(exchange.getLatencyNanos()/1000);
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return A copy of the histogram of times, in microseconds, from
+     *  dispatch to the response head.
+     */
+    public LatencyHistogram getFirstByteHistogram() {
+        return _firstByte.copy();
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return A copy of the histogram of times, in microseconds, from
+     *  dispatch to a complete response.
+     */
+    public LatencyHistogram getLatencyHistogram() {
+        return _latency.copy();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public long getActiveConnections() {
+        return _activeConnections.get();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public long getTotalConnections() {
+        return _totalConnections.get();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public long getRejectedConnections() {
+        return _rejectedConnections.get();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public long getRequestCount() {
+        return _requests.get();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public long getRequestsInFlight() {
+        return _inFlight.get();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public long getFailedResponseCount() {
+        return _failed.get();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public long getBytesIn() {
+        return _bytesIn.get();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public long getBytesOut() {
+        return _bytesOut.get();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public long getFirstByteMicros50() {
+        return _firstByte.getPercentile(50);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public long getFirstByteMicros99() {
+        return _firstByte.getPercentile(99);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public long getLatencyMicros50() {
+        return _latency.getPercentile(50);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public long getLatencyMicros99() {
+        return _latency.getPercentile(99);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public long getLatencyMicros999() {
+        return _latency.getPercentile(99.9);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public long getLatencyMicrosMax() {
+        return _latency.getMax();
+    }
+}
@@ -0,0 +1,101 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+
+/**
+ * JMX management interface for {@link ServerMetrics}.
+ * <p>Times are reported in microseconds.
+ *
+ * @author Keith Webster Johnston.
+ */
+public interface ServerMetricsMBean {
+
+    /**
+     * @return The number of open connections.
+     */
+    long getActiveConnections();
+
+    /**
+     * @return The number of connections accepted.
+     */
+    long getTotalConnections();
+
+    /**
+     * @return The number of connections closed by admission control.
+     */
+    long getRejectedConnections();
+
+    /**
+     * @return The number of requests dispatched.
+     */
+    long getRequestCount();
+
+    /**
+     * @return The number of requests whose responses are not yet complete.
+     */
+    long getRequestsInFlight();
+
+    /**
+     * @return The number of responses that could not be written in full.
+     */
+    long getFailedResponseCount();
+
+    /**
+     * @return The number of bytes read from connections.
+     */
+    long getBytesIn();
+
+    /**
+     * @return The number of bytes written to connections.
+     */
+    long getBytesOut();
+
+    /**
+     * @return The median time from dispatch to the response head.
+     */
+    long getFirstByteMicros50();
+
+    /**
+     * @return The 99th percentile time from dispatch to the response head.
+     */
+    long getFirstByteMicros99();
+
+    /**
+     * @return The median time from dispatch to a complete response.
+     */
+    long getLatencyMicros50();
+
+    /**
+     * @return The 99th percentile time from dispatch to a complete response.
+     */
+    long getLatencyMicros99();
+
+    /**
+     * @return The 99.9th percentile time from dispatch to a complete
+     *  response.
+     */
+    long getLatencyMicros999();
+
+    /**
+     * @return The longest time from dispatch to a complete response.
+     */
+    long getLatencyMicrosMax();
+}
@@ -0,0 +1,141 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import java.io.UnsupportedEncodingException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import com.johnstok.http.Version;
+
+
+/**
+ * Shared versions, statuses and pre-encoded status lines.
+ * <p>Responses for HTTP/1.0 and HTTP/1.1 that use one of Netty's standard
+ * statuses, with its standard reason phrase, share a single status object
+ * and a status line that is encoded once. Anything else is created per
+ * response and encoded by the encoder as usual.
+ *
+ * @author Keith Webster Johnston.
+ */
+final class StatusLines {
+
+    private static final Map<HttpResponseStatus, ChannelBuffer> HTTP_1_0_LINES =
+        encodeAll(HttpVersion.HTTP_1_0);
+    private static final Map<HttpResponseStatus, ChannelBuffer> HTTP_1_1_LINES =
+        encodeAll(HttpVersion.HTTP_1_1);
+
+
+    private StatusLines() { super(); }
+
+
+    /**
+     * Look up the Netty version for an HTTP version.
+     *
+     * @param version The HTTP version.
+     *
+     * @return A shared instance for HTTP/1.0 and HTTP/1.1; a new instance
+     *  otherwise.
+     */
+    static HttpVersion version(final Version version) {
+        if (1==version.getMajor() && 1==version.getMinor()) {
+            return HttpVersion.HTTP_1_1;
+        } else if (1==version.getMajor() && 0==version.getMinor()) {
+            return HttpVersion.HTTP_1_0;
+        }
+        return
+            new HttpVersion(
+                "HTTP",                                            //$NON-NLS-1$
+                version.getMajor(),
+                version.getMinor(),
+                version.getMajor()>1                 // Keep-alive from 1.1.
+                || (1==version.getMajor() && version.getMinor()>0));
+    }
+
+
+    /**
+     * Look up the Netty status for a status code and reason phrase.
+     *
+     * @param code   The status code.
+     * @param reason The reason phrase.
+     *
+     * @return A shared instance if the code is standard and the reason is
+     *  its standard phrase; a new instance otherwise.
+     */
+    static HttpResponseStatus status(final int code, final String reason) {
+        final HttpResponseStatus status = HttpResponseStatus.valueOf(code);
+        if (HTTP_1_1_LINES.containsKey(status)
+            && status.getReasonPhrase().equals(reason)) {
+            return status;
+        }
+        return new HttpResponseStatus(code, reason);
+    }
+
+
+    /**
+     * Look up the encoded status line for a response.
+     *
+     * @param version The response's version.
+     * @param status  The response's status.
+     *
+     * @return A read-only view of the status line, including its CRLF, or
+     *  NULL if the line has not been pre-encoded.
+     */
+    static ChannelBuffer encoded(final HttpVersion version,
+                                 final HttpResponseStatus status) {
+        final ChannelBuffer line;
+        if (HttpVersion.HTTP_1_1==version) {
+            line = HTTP_1_1_LINES.get(status);
+        } else if (HttpVersion.HTTP_1_0==version) {
+            line = HTTP_1_0_LINES.get(status);
+        } else {
+            line = null;
+        }
+        return (null==line) ? null : line.duplicate();
+    }
+
+
+    /*
+     * Netty returns a shared constant from valueOf() for each standard
+     * code, and a new instance for any other code.
+     */
+    private static Map<HttpResponseStatus, ChannelBuffer> encodeAll(
+                                                 final HttpVersion version) {
+        final Map<HttpResponseStatus, ChannelBuffer> lines =
+            new IdentityHashMap<HttpResponseStatus, ChannelBuffer>();
+        for (int code=100; code<600; code++) {
+            final HttpResponseStatus status = HttpResponseStatus.valueOf(code);
+            if (status!=HttpResponseStatus.valueOf(code)) { continue; }
+            try {
+                lines.put(
+                    status,
+                    ChannelBuffers.unmodifiableBuffer(
+                        ChannelBuffers.wrappedBuffer(
+                            (version+" "+status+"\r\n").getBytes("ASCII")))); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            } catch (final UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,115 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Logs exceptions with their stack traces, at most once per interval for
+ * each type of exception.
+ * <p>Exceptions of a type that has been logged within the interval are
+ * counted rather than logged; the count is reported with the next trace for
+ * that type.
+ *
+ * @author Keith Webster Johnston.
+ */
+final class ThrottledLog {
+
+    private final Logger _logger;
+    private final long _intervalNanos;
+    private final ConcurrentMap<Class<?>, Window> _windows =
+        new ConcurrentHashMap<Class<?>, Window>();
+    private final AtomicLong _suppressed = new AtomicLong();
+
+
+    /**
+     * Constructor.
+     *
+     * @param logger         The logger to write to.
+     * @param intervalMillis The minimum time between traces for one type of
+     *  exception, in milliseconds.
+     */
+    ThrottledLog(final Logger logger, final long intervalMillis) {
+        if (intervalMillis<0) { throw new IllegalArgumentException(); }
+        _logger = logger;
+        _intervalNanos = intervalMillis*1000000L;
+    }
+
+
+    /**
+     * Log an exception, unless one of the same type was logged recently.
+     *
+     * @param level   The level to log at.
+     * @param message The message.
+     * @param t       The exception.
+     */
+    void log(final Level level, final String message, final Throwable t) {
+        if (!_logger.isLoggable(level)) { return; }
+
+        final Class<?> type = (null==t) ? Void.class : t.getClass();
+        Window w = _windows.get(type);
+        if (null==w) {
+            final Window created = new Window();
+            w = _windows.putIfAbsent(type, created);
+            if (null==w) { w = created; }
+        }
+
+        final long now = System.nanoTime();
+        final long last = w._lastLogged.get();
+        if ((0!=last && now-last<_intervalNanos)
+            || !w._lastLogged.compareAndSet(last, now)) {
+            w._suppressed.incrementAndGet();
+            _suppressed.incrementAndGet();
+            return;
+        }
+
+        final long suppressed = w._suppressed.getAndSet(0);
+        _logger.log(
+            level,
+            (0==suppressed)
+                ? message
+                : message+" ("+suppressed+" similar suppressed)",  //$NON-NLS-1$
+            t);
+    }
+
+
+    /**
+     * Query the number of exceptions that have not been logged.
+     *
+     * @return The total number of suppressed exceptions.
+     */
+    long getSuppressedCount() {
+        return _suppressed.get();
+    }
+
+
+    /**
+     * Logging state for one type of exception.
+     */
+    private static final class Window {
+        final AtomicLong _lastLogged = new AtomicLong();
+        final AtomicLong _suppressed = new AtomicLong();
+    }
+}
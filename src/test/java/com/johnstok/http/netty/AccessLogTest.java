@@ -0,0 +1,188 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import static org.junit.Assert.*;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.johnstok.http.client.SynchronousClient;
+import com.johnstok.http.netty.test.HelloWorldRequestFactory;
+
+
+/**
+ * Tests for the {@link AccessLog}.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class AccessLogTest
+    extends
+        AbstractServerTest<NettyServer> {
+
+    private File _file;
+
+
+    /** {@inheritDoc} */
+    @Override
+    @Before
+    public void setUp() {
+        super.setUp();
+        try {
+            _file = File.createTempFile("access", ".log");
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    @After
+    public void tearDown() {
+        super.tearDown();
+        _file.delete();
+    }
+
+
+    /**
+     * Test.
+     *
+     * @throws Exception If the test fails.
+     */
+    @Test
+    public void entryFormatted() throws Exception {
+
+        // ARRANGE
+        final AccessLog log = new AccessLog(_file, 16, 0);
+
+        // ACT
+        log.log(
+            "GET", "/index.html", 200, 1234, 5000000,
+            new InetSocketAddress("127.0.0.1", 1234));
+        log.close();
+
+        // ASSERT
+        final List<String> lines = readLines();
+        assertEquals(1, lines.size());
+        assertTrue(
+            lines.get(0).endsWith(
+                " 127.0.0.1 \"GET /index.html\" 200 1234 5000"));
+    }
+
+
+    /**
+     * Test.
+     *
+     * @throws Exception If the test fails.
+     */
+    @Test
+    public void longEntryTruncated() throws Exception {
+
+        // ARRANGE
+        final AccessLog log = new AccessLog(_file, 16, 0);
+        final StringBuilder uri = new StringBuilder("/");
+        for (int i=0; i<AccessLog.ENTRY_SIZE; i++) { uri.append('a'); }
+
+        // ACT
+        log.log("GET", uri.toString(), 200, 0, 0, null);
+        log.close();
+
+        // ASSERT
+        final List<String> lines = readLines();
+        assertEquals(1, lines.size());
+        assertEquals(AccessLog.ENTRY_SIZE-1, lines.get(0).length());
+    }
+
+
+    /**
+     * Test.
+     *
+     * @throws Exception If the test fails.
+     */
+    @Test
+    public void entriesDroppedAfterClose() throws Exception {
+
+        // ARRANGE
+        final AccessLog log = new AccessLog(_file, 16, 0);
+        log.close();
+
+        // ACT
+        final boolean recorded = log.log("GET", "/", 200, 0, 0, null);
+
+        // ASSERT
+        assertFalse(recorded);
+        assertEquals(1, log.getDroppedCount());
+    }
+
+
+    /**
+     * Test.
+     *
+     * @throws Exception If the test fails.
+     */
+    @Test
+    public void completedRequestLogged() throws Exception {
+
+        // ARRANGE
+        final AccessLog log = new AccessLog(_file, 16, 0);
+        final NettyServerConfig config = new NettyServerConfig();
+        config.setAccessLog(log);
+        _server = new NettyServer(config);
+        _server.listen(
+            new InetSocketAddress(LOCALHOST, 4444),
+            new HelloWorldRequestFactory());
+
+        // ACT
+        SynchronousClient.get("/");
+        _server.close();
+        log.close();
+
+        // ASSERT
+        final List<String> lines = readLines();
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).contains(" \"GET /\" 200 12 "));
+    }
+
+
+    private List<String> readLines() throws IOException {
+        final List<String> lines = new ArrayList<String>();
+        final BufferedReader r = new BufferedReader(new FileReader(_file));
+        try {
+            for (String line=r.readLine(); null!=line; line=r.readLine()) {
+                lines.add(line);
+            }
+        } finally {
+            r.close();
+        }
+        return lines;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected NettyServer createServer() { return new NettyServer(); }
+}
@@ -0,0 +1,182 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import static org.junit.Assert.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import org.junit.Test;
+import com.johnstok.http.netty.test.HelloWorldRequestFactory;
+
+
+/**
+ * Tests for connection admission control.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class AdmissionTest extends AbstractServerTest<NettyServer> {
+
+    private final NettyServerConfig _config = new NettyServerConfig();
+
+
+    /** Test. */
+    @Test
+    public void connectionsOverLimitAreClosed() throws Exception {
+
+        // ARRANGE
+        _config.setMaxConnections(2);
+        listen();
+
+        // ACT
+        final Socket a = connect();
+        final Socket b = connect();
+        final Socket c = connect();
+
+        // ASSERT
+        assertEquals(-1, c.getInputStream().read());
+        assertEquals(2, _server.getConnectionCount());
+        assertEquals(1, _server.getMetrics().getRejectedConnections());
+        assertEquals(2, _server.getMetrics().getActiveConnections());
+        assertEquals(2, _server.getMetrics().getTotalConnections());
+        a.close();
+        b.close();
+    }
+
+
+    /** Test. */
+    @Test
+    public void connectionsOverAddressLimitAreClosed() throws Exception {
+
+        // ARRANGE
+        _config.setMaxConnectionsPerAddress(1);
+        listen();
+
+        // ACT
+        final Socket a = connect();
+        final Socket b = connect();
+
+        // ASSERT
+        assertEquals(-1, b.getInputStream().read());
+        assertEquals(1, _server.getConnectionCount());
+        a.close();
+    }
+
+
+    /** Test. */
+    @Test
+    public void heldConnectionIsAdmittedWhenSlotFrees() throws Exception {
+
+        // ARRANGE
+        _config.setMaxConnections(1);
+        _config.setPauseAccepts(true);
+        listen();
+        final Socket a = connect();
+        final Socket b = connect();
+        b.getOutputStream().write(
+            "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII")); //$NON-NLS-1$
+
+        // ACT
+        a.close();
+
+        // ASSERT
+        assertEquals('H', b.getInputStream().read());
+        assertEquals(0, _server.getMetrics().getRejectedConnections());
+        b.close();
+    }
+
+
+    /**
+     * Test.
+     *
+     * @throws Exception If the test fails.
+     */
+    @Test
+    public void drainCompletesWhileAConnectionIsHeld() throws Exception {
+
+        // ARRANGE
+        _config.setMaxConnections(1);
+        _config.setPauseAccepts(true);
+        _config.setDrainTimeout(30000);
+        listen();
+        final Socket a = connect();
+        awaitCount(1);
+        final Socket b = connect();
+        final Thread closer = new Thread() {
+            @Override
+            public void run() { _server.close(); }
+        };
+
+        // ACT
+        closer.start();
+        closer.join(5000);
+
+        // ASSERT
+        assertFalse(closer.isAlive());
+        assertFalse(_server.isListening());
+        assertEquals(-1, b.getInputStream().read());
+        a.close();
+        b.close();
+    }
+
+
+    /** Test. */
+    @Test
+    public void countReturnsToZeroAfterClose() throws Exception {
+
+        // ARRANGE
+        listen();
+        final Socket a = connect();
+        awaitCount(1);
+
+        // ACT
+        a.close();
+
+        // ASSERT
+        awaitCount(0);
+    }
+
+
+    private void listen() {
+        _server = new NettyServer(_config);
+        _server.listen(
+            new InetSocketAddress(LOCALHOST, 4444),
+            new HelloWorldRequestFactory());
+    }
+
+
+    private Socket connect() throws Exception {
+        final Socket socket = new Socket(LOCALHOST, 4444);
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+
+    private void awaitCount(final int expected) throws Exception {
+        for (int i=0; i<50 && expected!=_server.getConnectionCount(); i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(expected, _server.getConnectionCount());
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected NettyServer createServer() { return new NettyServer(); }
+}
@@ -0,0 +1,203 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import static org.junit.Assert.*;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.junit.Test;
+import com.johnstok.http.Version;
+import com.johnstok.http.async.Request;
+import com.johnstok.http.async.RequestFactory;
+import com.johnstok.http.async.Response;
+import com.johnstok.http.netty.test.FakeChannel;
+
+
+/**
+ * Tests for flow control between a {@link Request} and its connection.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class BackPressureTest
+    extends
+        AbstractServerTest<NettyServer> {
+
+    private static final int PIECE_SIZE = 8*1024;
+    private static final int PIECE_COUNT = 256;
+
+
+    /**
+     * Test.
+     *
+     * @throws Exception If the test fails.
+     */
+    @Test
+    public void producerPausesWhenConnectionNotWritable() throws Exception {
+
+        // ARRANGE
+        final AtomicInteger pauses = new AtomicInteger();
+        _server.listen(
+            new InetSocketAddress(LOCALHOST, 4444),
+            new RequestFactory() {
+                @Override
+                public Request newInstance() {
+                    return new ProducerRequest(pauses);
+                }
+            });
+        final DefaultHttpClient httpClient = new DefaultHttpClient();
+
+        // ACT
+        long received = 0;
+        try {
+            final HttpResponse response =
+                httpClient.execute(new HttpGet("http://localhost:4444/"));
+            final InputStream in = response.getEntity().getContent();
+            final byte[] buffer = new byte[1024];
+            for (int read=in.read(buffer); read>=0; read=in.read(buffer)) {
+                received += read;
+                Thread.sleep(0, 1000); // Read slowly.
+            }
+        } finally {
+            httpClient.getConnectionManager().shutdown();
+        }
+
+        // ASSERT
+        assertEquals(PIECE_SIZE*PIECE_COUNT, received);
+        assertTrue(pauses.get()>0);
+    }
+
+
+    /** Test. */
+    @Test
+    public void pipelinedResponseUnwritableOverHighWaterMark() {
+
+        // ARRANGE
+        final FakeChannel channel = new FakeChannel();
+        final ResponseSequencer sequencer =
+            new ResponseSequencer(
+                channel, new ReadSuspender(channel), 2, PIECE_SIZE);
+        final int first = sequencer.begin();
+        final int second = sequencer.begin();
+        final AtomicBoolean resumed = new AtomicBoolean();
+
+        // ACT
+        sequencer.write(second, new DefaultHttpChunk(buffer(PIECE_SIZE)));
+        final boolean writableAtMark = sequencer.isWritable(second);
+        sequencer.write(second, new DefaultHttpChunk(buffer(1)));
+        final boolean writableOverMark = sequencer.isWritable(second);
+        sequencer.whenWritable(second, new Runnable() {
+            @Override public void run() { resumed.set(true); }
+        });
+        final boolean resumedBehindFirst = resumed.get();
+        sequencer.end(first, false);
+
+        // ASSERT
+        assertTrue(writableAtMark);
+        assertFalse(writableOverMark);
+        assertFalse(resumedBehindFirst);
+        assertTrue(resumed.get());
+        assertTrue(sequencer.isWritable(second));
+        assertEquals(2, channel.getWritten().size());
+    }
+
+
+    private static ChannelBuffer buffer(final int size) {
+        return ChannelBuffers.wrappedBuffer(new byte[size]);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected NettyServer createServer() {
+        final NettyServerConfig config = new NettyServerConfig();
+        config.setWriteBufferWaterMarks(PIECE_SIZE, 2*PIECE_SIZE);
+        return new NettyServer(config);
+    }
+
+
+    /**
+     * A request that writes its body in pieces, waiting whenever the
+     * connection is not writable.
+     */
+    private static class ProducerRequest
+        implements
+            Request,
+            Runnable {
+
+        private final AtomicInteger _pauses;
+        private ExtendedResponse _response;
+        private int _remaining = PIECE_COUNT;
+
+        ProducerRequest(final AtomicInteger pauses) { _pauses = pauses; }
+
+        @Override
+        public void onBegin(final Response response) {
+            _response = (ExtendedResponse) response;
+        }
+
+        @Override
+        public void onRequestLine(final String method,
+                                  final String uri,
+                                  final Version version) { /* No Op */ }
+
+        @Override
+        public void onHeaders(final Map<String, List<String>> headers) { /* No Op */ }
+
+        @Override
+        public void onBody(final ByteBuffer bytes) { /* No Op */ }
+
+        @Override
+        public void onEnd(final Map<String, List<String>> trailers) {
+            _response.writeStatusLine(new Version(1, 1), 200, "OK");
+            _response.writeHeaders(
+                Collections.singletonMap(
+                    "Content-Length",
+                    Collections.singletonList(
+                        String.valueOf(PIECE_SIZE*PIECE_COUNT))));
+            run();
+        }
+
+        @Override
+        public void run() {
+            while (_remaining>0) {
+                if (!_response.isWritable()) {
+                    _pauses.incrementAndGet();
+                    _response.whenWritable(this);
+                    return;
+                }
+                _response.writeBody(ByteBuffer.wrap(new byte[PIECE_SIZE]));
+                _remaining--;
+            }
+            _response.writeEnd(null);
+        }
+    }
+}
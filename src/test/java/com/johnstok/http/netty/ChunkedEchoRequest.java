@@ -79,8 +79,8 @@ public class ChunkedEchoRequest
     /** {@inheritDoc} */
     @Override
     public void onBody(final ByteBuffer bytes) {
-        for (final byte b : bytes.array()) {
-            _response.writeBody(ByteBuffer.wrap(new byte[] {b}));
+        while (bytes.hasRemaining()) {
+            _response.writeBody(ByteBuffer.wrap(new byte[] {bytes.get()}));
         }
     }
 
@@ -24,10 +24,13 @@ import java.io.ByteArrayInputStream;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.params.ClientPNames;
@@ -111,8 +114,80 @@ public class ChunkedRequestTest
         final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
         final Request request = new Request() {
 
+            private Response _response;
+
+            @Override
+            public void onBegin(final Response response) { _response = response; }
+
+            @Override
+            public void onRequestLine(final String method, final String uri, final Version version) {
+                /* No Op */
+            }
+
+            @Override
+            public void onHeaders(final Map<String, List<String>> headers) {
+                /* No Op */
+            }
+
+            @Override
+            public void onBody(final ByteBuffer bytes) {
+                chunks.add(bytes);
+            }
+
+            @Override
+            public void onEnd(final Map<String, List<String>> trailers) {
+                // Respond, so a persistent connection isn't left waiting.
+                _response.writeStatusLine(new Version(1, 1), 200, "OK");
+                _response.writeHeaders(new HashMap<String, List<String>>());
+                _response.writeEnd(null);
+                latch.countDown();
+            }};
+        _server.listen(
+            new InetSocketAddress(LOCALHOST, 4444),
+            new RequestFactory() {
+                @Override
+                public Request newInstance() {
+                    return request;
+                }
+            });
+
+
+        // ACT
+        SynchronousClient.post("http://localhost:4444/", "abc", 1);
+        latch.await();
+
+        // ASSERT
+        assertEquals(3, chunks.size());
+        assertEquals(1, chunks.get(0).remaining());
+        assertEquals((byte) 'a', chunks.get(0).get(chunks.get(0).position()));
+        assertEquals(1, chunks.get(1).remaining());
+        assertEquals((byte) 'b', chunks.get(1).get(chunks.get(1).position()));
+        assertEquals(1, chunks.get(2).remaining());
+        assertEquals((byte) 'c', chunks.get(2).get(chunks.get(2).position()));
+    }
+
+
+    /**
+     * Test.
+     *
+     * @throws Exception If the test fails.
+     */
+    @Test
+    public void pausedBodyDeliveredAfterResume() throws Exception {
+
+        // ARRANGE
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicInteger chunksWhilePaused = new AtomicInteger();
+        final List<ByteBuffer> chunks =
+            Collections.synchronizedList(new ArrayList<ByteBuffer>());
+        final Request request = new Request() {
+
+            private ExtendedResponse _response;
+
             @Override
-            public void onBegin(final Response response) { /* No Op */ }
+            public void onBegin(final Response response) {
+                _response = (ExtendedResponse) response;
+            }
 
             @Override
             public void onRequestLine(final String method, final String uri, final Version version) {
@@ -127,10 +202,27 @@ public class ChunkedRequestTest
             @Override
             public void onBody(final ByteBuffer bytes) {
                 chunks.add(bytes);
+                if (1!=chunks.size()) { return; }
+                _response.pauseBody();
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            Thread.sleep(250);
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        chunksWhilePaused.set(chunks.size());
+                        _response.resumeBody();
+                    }
+                }.start();
             }
 
             @Override
             public void onEnd(final Map<String, List<String>> trailers) {
+                _response.writeStatusLine(new Version(1, 1), 200, "OK");
+                _response.writeHeaders(new HashMap<String, List<String>>());
+                _response.writeEnd(null);
                 latch.countDown();
             }};
         _server.listen(
@@ -148,13 +240,11 @@ public class ChunkedRequestTest
         latch.await();
 
         // ASSERT
+        assertEquals(1, chunksWhilePaused.get());
         assertEquals(3, chunks.size());
-        assertEquals(1, chunks.get(0).array().length);
-        assertEquals((byte) 'a', chunks.get(0).array()[0]);
-        assertEquals(1, chunks.get(1).array().length);
-        assertEquals((byte) 'b', chunks.get(1).array()[0]);
-        assertEquals(1, chunks.get(2).array().length);
-        assertEquals((byte) 'c', chunks.get(2).array()[0]);
+        assertEquals((byte) 'a', chunks.get(0).get(chunks.get(0).position()));
+        assertEquals((byte) 'b', chunks.get(1).get(chunks.get(1).position()));
+        assertEquals((byte) 'c', chunks.get(2).get(chunks.get(2).position()));
     }
 
 
@@ -0,0 +1,317 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import static org.junit.Assert.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Test;
+import com.johnstok.http.netty.test.HelloWorldRequestFactory;
+
+
+/**
+ * Tests for response compression.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class CompressionTest extends AbstractServerTest<NettyServer> {
+
+    /** Test. */
+    @Test
+    public void gzipPreferredOverDeflate() {
+
+        // ACT
+        final Compression c = Compression.negotiate("deflate, gzip", 6, 0); //$NON-NLS-1$
+
+        // ASSERT
+        assertEquals(Compression.GZIP, c.getCoding());
+    }
+
+
+    /** Test. */
+    @Test
+    public void qualityZeroRefusesCoding() {
+
+        // ACT
+        final Compression c =
+            Compression.negotiate("gzip;q=0, deflate;q=0.5", 6, 0); //$NON-NLS-1$
+
+        // ASSERT
+        assertEquals(Compression.DEFLATE, c.getCoding());
+    }
+
+
+    /** Test. */
+    @Test
+    public void noAcceptEncodingMeansNoCompression() {
+
+        // ACT
+        final Compression c = Compression.negotiate(null, 6, 0);
+
+        // ASSERT
+        assertSame(Compression.NONE, c);
+        assertFalse(c.isCompressible(response("text/plain", null), null)); //$NON-NLS-1$
+    }
+
+
+    /** Test. */
+    @Test
+    public void smallAndCompressedBodiesSkipped() {
+
+        // ARRANGE
+        final Compression c = Compression.negotiate("gzip", 6, 1024); //$NON-NLS-1$
+
+        // ASSERT
+        assertFalse(c.isCompressible(response("text/plain", "100"), null)); //$NON-NLS-1$ //$NON-NLS-2$
+        assertFalse(c.isCompressible(response("image/png", null), null)); //$NON-NLS-1$
+        assertTrue(c.isCompressible(response("text/plain", "2048"), null)); //$NON-NLS-1$ //$NON-NLS-2$
+        assertTrue(c.isCompressible(response("application/json; charset=UTF-8", null), null)); //$NON-NLS-1$
+    }
+
+
+    /** Test. */
+    @Test
+    public void gzipBodyRoundTrips() throws Exception {
+
+        // ARRANGE
+        final BodyDeflater deflater = new BodyDeflater();
+        deflater.start(Compression.GZIP, 6);
+
+        // ACT
+        final ChannelBuffer out = ChannelBuffers.dynamicBuffer();
+        out.writeBytes(deflater.deflate(text("Hello, ")));         //$NON-NLS-1$
+        out.writeBytes(deflater.deflate(text("world!")));          //$NON-NLS-1$
+        out.writeBytes(deflater.finish());
+
+        // ASSERT
+        assertEquals(
+            "Hello, world!",                                      //$NON-NLS-1$
+            readAll(new GZIPInputStream(new ByteArrayInputStream(bytes(out)))));
+    }
+
+
+    /** Test. */
+    @Test
+    public void deflateBodyRoundTrips() throws Exception {
+
+        // ARRANGE
+        final BodyDeflater deflater = new BodyDeflater();
+        deflater.start(Compression.DEFLATE, 1);
+
+        // ACT
+        final ChannelBuffer out = ChannelBuffers.dynamicBuffer();
+        out.writeBytes(deflater.deflate(text("Hello, world!")));   //$NON-NLS-1$
+        out.writeBytes(deflater.finish());
+
+        // ASSERT
+        assertEquals(
+            "Hello, world!",                                      //$NON-NLS-1$
+            readAll(new InflaterInputStream(new ByteArrayInputStream(bytes(out)))));
+    }
+
+
+    /** Test. */
+    @Test
+    public void deflaterReusedAcrossBodies() throws Exception {
+
+        // ARRANGE
+        final BodyDeflater deflater = new BodyDeflater();
+        deflater.start(Compression.GZIP, 6);
+        deflater.deflate(text("Abandoned"));                      //$NON-NLS-1$
+
+        // ACT
+        deflater.start(Compression.DEFLATE, 6);
+        final ChannelBuffer first = ChannelBuffers.dynamicBuffer();
+        first.writeBytes(deflater.deflate(text("first")));         //$NON-NLS-1$
+        first.writeBytes(deflater.finish());
+        deflater.start(Compression.GZIP, 6);
+        final ChannelBuffer second = ChannelBuffers.dynamicBuffer();
+        second.writeBytes(deflater.deflate(text("second")));       //$NON-NLS-1$
+        second.writeBytes(deflater.finish());
+        deflater.end();
+
+        // ASSERT
+        assertEquals(
+            "first",                                              //$NON-NLS-1$
+            readAll(new InflaterInputStream(new ByteArrayInputStream(bytes(first)))));
+        assertEquals(
+            "second",                                             //$NON-NLS-1$
+            readAll(new GZIPInputStream(new ByteArrayInputStream(bytes(second)))));
+    }
+
+
+    /** Test. */
+    @Test
+    public void flushReleasesHeldData() throws Exception {
+
+        // ARRANGE
+        final BodyDeflater deflater = new BodyDeflater();
+        deflater.start(Compression.DEFLATE, 6);
+        final ChannelBuffer out = ChannelBuffers.dynamicBuffer();
+        out.writeBytes(deflater.deflate(text("Hello")));           //$NON-NLS-1$
+
+        // ACT
+        out.writeBytes(deflater.flush());
+
+        // ASSERT
+        final Inflater inflater = new Inflater();
+        inflater.setInput(bytes(out));
+        final byte[] inflated = new byte[64];
+        final int count = inflater.inflate(inflated);
+        inflater.end();
+        deflater.end();
+        assertEquals(
+            "Hello",                                              //$NON-NLS-1$
+            new String(inflated, 0, count, CharsetUtil.UTF_8));
+    }
+
+
+    /** Test. */
+    @Test
+    public void deflaterPoolKeepsAtMostMaxIdle() {
+
+        // ARRANGE
+        final DeflaterPool pool = new DeflaterPool(1);
+        final BodyDeflater a = pool.take();
+        final BodyDeflater b = pool.take();
+
+        // ACT
+        pool.give(a);
+        pool.give(b);
+
+        // ASSERT
+        assertNotSame(a, b);
+        assertEquals(1, pool.getIdleCount());
+        assertSame(a, pool.take());
+        assertEquals(0, pool.getIdleCount());
+        pool.close();
+    }
+
+
+    /** Test. */
+    @Test
+    public void responseCompressedWhenAccepted() throws Exception {
+
+        // ARRANGE
+        final NettyServerConfig config = new NettyServerConfig();
+        config.setCompressionLevel(6);
+        _server = new NettyServer(config);
+        _server.listen(
+            new InetSocketAddress(LOCALHOST, 4444),
+            new HelloWorldRequestFactory());
+        final Socket socket = new Socket(LOCALHOST, 4444);
+        socket.setSoTimeout(5000);
+
+        // ACT
+        socket.getOutputStream().write(
+            ("GET / HTTP/1.1\r\nHost: localhost\r\n"               //$NON-NLS-1$
+             + "Accept-Encoding: gzip\r\nConnection: close\r\n\r\n") //$NON-NLS-1$
+            .getBytes(CharsetUtil.US_ASCII));
+        final InputStream in = socket.getInputStream();
+        final String head = readHead(in);
+        final byte[] body = readChunks(in);
+        socket.close();
+
+        // ASSERT
+        assertTrue(head, head.contains("Content-Encoding: gzip\r\n")); //$NON-NLS-1$
+        assertTrue(head, head.contains("Transfer-Encoding: chunked\r\n")); //$NON-NLS-1$
+        assertEquals(
+            "Hello World!",                                       //$NON-NLS-1$
+            readAll(new GZIPInputStream(new ByteArrayInputStream(body))));
+    }
+
+
+    private static HttpResponse response(final String type,
+                                         final String length) {
+        final HttpResponse response =
+            new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.setHeader("Content-Type", type);                 //$NON-NLS-1$
+        if (null!=length) { response.setHeader("Content-Length", length); } //$NON-NLS-1$
+        return response;
+    }
+
+
+    private static ChannelBuffer text(final String text) {
+        return ChannelBuffers.copiedBuffer(text, CharsetUtil.UTF_8);
+    }
+
+
+    private static byte[] bytes(final ChannelBuffer buffer) {
+        final byte[] bytes = new byte[buffer.readableBytes()];
+        buffer.readBytes(bytes);
+        return bytes;
+    }
+
+
+    private static String readAll(final InputStream in) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int b=in.read(); b!=-1; b=in.read()) { out.write(b); }
+        return new String(out.toByteArray(), CharsetUtil.UTF_8);
+    }
+
+
+    private static String readLine(final InputStream in) throws Exception {
+        final StringBuilder line = new StringBuilder();
+        for (int b=in.read(); b!='\n'; b=in.read()) {
+            if (-1==b) { throw new IllegalStateException(); }
+            line.append((char) b);
+        }
+        return line.append('\n').toString();
+    }
+
+
+    private static String readHead(final InputStream in) throws Exception {
+        final StringBuilder head = new StringBuilder();
+        for (String line=readLine(in); !"\r\n".equals(line); line=readLine(in)) { //$NON-NLS-1$
+            head.append(line);
+        }
+        return head.toString();
+    }
+
+
+    private static byte[] readChunks(final InputStream in) throws Exception {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int size=Integer.parseInt(readLine(in).trim(), 16);
+             size>0;
+             size=Integer.parseInt(readLine(in).trim(), 16)) {
+            for (int i=0; i<size; i++) { body.write(in.read()); }
+            readLine(in);
+        }
+        return body.toByteArray();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected NettyServer createServer() { return new NettyServer(); }
+}
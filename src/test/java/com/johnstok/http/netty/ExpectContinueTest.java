@@ -0,0 +1,253 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import static org.junit.Assert.*;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import com.johnstok.http.Version;
+import com.johnstok.http.async.Request;
+import com.johnstok.http.async.RequestFactory;
+import com.johnstok.http.netty.test.HelloWorldRequestFactory;
+
+
+/**
+ * Tests for 'Expect: 100-continue' handling.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class ExpectContinueTest
+    extends
+        AbstractServerTest<NettyServer> {
+
+    private static final String REQUEST_HEAD =
+        "POST / HTTP/1.1\r\n"
+        + "Host: localhost\r\n"
+        + "Content-Type: text/plain\r\n"
+        + "Content-Length: 5\r\n"
+        + "Expect: 100-continue\r\n"
+        + "Connection: close\r\n\r\n";
+
+
+    /**
+     * Test.
+     *
+     * @throws Exception If the test fails.
+     */
+    @Test
+    public void continueSentBeforeBody() throws Exception {
+
+        // ARRANGE
+        _server.listen(
+            new InetSocketAddress(LOCALHOST, 4444),
+            new HelloWorldRequestFactory());
+        final Socket socket = new Socket(LOCALHOST, 4444);
+        socket.setSoTimeout(5000);
+
+        // ACT
+        write(socket, REQUEST_HEAD);
+        final String interim = readLine(socket.getInputStream());
+        write(socket, "hello");
+        final String response = readAll(socket.getInputStream());
+        socket.close();
+
+        // ASSERT
+        assertEquals("HTTP/1.1 100 Continue", interim);
+        assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+        assertTrue(response.endsWith("Hello World!"));
+    }
+
+
+    /**
+     * Test.
+     *
+     * @throws Exception If the test fails.
+     */
+    @Test
+    public void echoReadsContinuedBodyOnPersistentConnection()
+    throws Exception {
+
+        // ARRANGE
+        final List<ChunkedEchoRequest> requests =
+            Collections.synchronizedList(new ArrayList<ChunkedEchoRequest>());
+        _server.listen(
+            new InetSocketAddress(LOCALHOST, 4444),
+            new RequestFactory() {
+                @Override
+                public Request newInstance() {
+                    final ChunkedEchoRequest request = new ChunkedEchoRequest();
+                    requests.add(request);
+                    return request;
+                }
+            });
+        final Socket socket = new Socket(LOCALHOST, 4444);
+        socket.setSoTimeout(5000);
+
+        // ACT
+        write(
+            socket,
+            "POST / HTTP/1.1\r\n"
+            + "Host: localhost\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "Content-Length: 5\r\n"
+            + "Expect: 100-continue\r\n\r\n");
+        final String interim = readLine(socket.getInputStream());
+        write(socket, "hello");
+        final String first = readUntil(socket.getInputStream(), "0\r\n\r\n");
+        write(
+            socket,
+            "POST / HTTP/1.1\r\n"
+            + "Host: localhost\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "Content-Length: 5\r\n"
+            + "Connection: close\r\n\r\n"
+            + "world");
+        final String second = readAll(socket.getInputStream());
+        socket.close();
+
+        // ASSERT
+        assertEquals("HTTP/1.1 100 Continue", interim);
+        assertTrue(first.startsWith("HTTP/1.1 200 OK"));
+        assertFalse(first.contains("Connection: close"));
+        assertEquals("hello", chunkedBody(first));
+        assertTrue(second.startsWith("HTTP/1.1 200 OK"));
+        assertEquals("world", chunkedBody(second));
+        assertEquals(2, requests.size());
+        assertTrue(requests.get(0).isComplete());
+        assertTrue(requests.get(1).isComplete());
+    }
+
+
+    /**
+     * Test.
+     *
+     * @throws Exception If the test fails.
+     */
+    @Test
+    public void rejectionInOnHeadersSkipsContinue() throws Exception {
+
+        // ARRANGE
+        final EchoRequest request = new EchoRequest() {
+            /** {@inheritDoc} */
+            @Override
+            public void onRequestLine(final String method,
+                                      final String uri,
+                                      final Version version) {
+                /* No Op */
+            }
+
+            /** {@inheritDoc} */
+            @Override
+            public void onHeaders(final Map<String, List<String>> headers) {
+                _response.writeStatusLine(
+                    new Version(1, 1), 413, "Request Entity Too Large");
+                _response.writeHeaders(
+                    Collections.singletonMap(
+                        "Content-Length", Collections.singletonList("0")));
+                _response.writeEnd(null);
+            }
+        };
+        _server.listen(
+            new InetSocketAddress(LOCALHOST, 4444),
+            new RequestFactory() {
+                @Override
+                public Request newInstance() {
+                    return request;
+                }
+            });
+        final Socket socket = new Socket(LOCALHOST, 4444);
+        socket.setSoTimeout(5000);
+
+        // ACT
+        write(socket, REQUEST_HEAD);
+        final String response = readAll(socket.getInputStream());
+        socket.close();
+
+        // ASSERT
+        assertTrue(response.startsWith("HTTP/1.1 413 Request Entity Too Large"));
+        assertFalse(response.contains("100 Continue"));
+        assertFalse(request.isComplete());
+    }
+
+
+    private void write(final Socket socket,
+                       final String data) throws Exception {
+        final OutputStream out = socket.getOutputStream();
+        out.write(data.getBytes("US-ASCII"));
+        out.flush();
+    }
+
+
+    private String readLine(final InputStream in) throws Exception {
+        final StringBuilder line = new StringBuilder();
+        for (int c=in.read(); c>=0 && '\n'!=c; c=in.read()) {
+            if ('\r'!=c) { line.append((char) c); }
+        }
+        in.read(); in.read(); // Consume the blank line.
+        return line.toString();
+    }
+
+
+    private String readUntil(final InputStream in,
+                             final String terminator) throws Exception {
+        final StringBuilder received = new StringBuilder();
+        for (int c=in.read(); c>=0; c=in.read()) {
+            received.append((char) c);
+            if (received.toString().endsWith(terminator)) { break; }
+        }
+        return received.toString();
+    }
+
+
+    private String chunkedBody(final String response) {
+        final StringBuilder body = new StringBuilder();
+        int i = response.indexOf("\r\n\r\n")+4;
+        while (true) {
+            final int eol = response.indexOf("\r\n", i);
+            final int size = Integer.parseInt(response.substring(i, eol), 16);
+            if (0==size) { return body.toString(); }
+            body.append(response, eol+2, eol+2+size);
+            i = eol+2+size+2;
+        }
+    }
+
+
+    private String readAll(final InputStream in) throws Exception {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        for (int read=in.read(buffer); read>=0; read=in.read(buffer)) {
+            received.write(buffer, 0, read);
+        }
+        return received.toString("US-ASCII");
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected NettyServer createServer() { return new NettyServer(); }
+}
@@ -0,0 +1,237 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import static org.junit.Assert.*;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.johnstok.http.Version;
+import com.johnstok.http.async.Request;
+import com.johnstok.http.async.RequestFactory;
+import com.johnstok.http.async.Response;
+
+
+/**
+ * Tests for writing a file as the response body.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class FileResponseTest
+    extends
+        AbstractServerTest<NettyServer> {
+
+    private DefaultHttpClient _httpClient;
+    private File _file;
+    private String _content;
+
+
+    /**
+     * Set up ready for a test.
+     *
+     *  @throws Exception If setup fails.
+     */
+    @Override
+    @Before
+    public void setUp() {
+        super.setUp();
+        _httpClient = new DefaultHttpClient();
+        final StringBuilder content = new StringBuilder();
+        for (int i=0; i<1000; i++) { content.append(UUID.randomUUID()); }
+        _content = content.toString();
+        try {
+            _file = File.createTempFile("async-http-netty", ".txt");
+            final FileOutputStream out = new FileOutputStream(_file);
+            try {
+                out.write(_content.getBytes("US-ASCII"));
+            } finally {
+                out.close();
+            }
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /** Clean up after a test. */
+    @Override
+    @After
+    public void tearDown() {
+        _httpClient.getConnectionManager().shutdown();
+        _httpClient = null;
+        _file.delete();
+        super.tearDown();
+    }
+
+
+    /**
+     * Test.
+     *
+     * @throws Exception If the test fails.
+     */
+    @Test
+    public void fixedLengthFileBody() throws Exception {
+
+        // ARRANGE
+        listen("Content-Length", String.valueOf(_file.length()), false);
+
+        // ACT
+        final HttpResponse response =
+            _httpClient.execute(new HttpGet("http://localhost:4444/"));
+
+        // ASSERT
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals(_content, EntityUtils.toString(response.getEntity()));
+    }
+
+
+    /**
+     * Test.
+     *
+     * @throws Exception If the test fails.
+     */
+    @Test
+    public void chunkedFileBody() throws Exception {
+
+        // ARRANGE
+        listen("Transfer-Encoding", "chunked", false);
+
+        // ACT
+        final HttpResponse response =
+            _httpClient.execute(new HttpGet("http://localhost:4444/"));
+
+        // ASSERT
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertTrue(response.getEntity().isChunked());
+        assertEquals(_content, EntityUtils.toString(response.getEntity()));
+    }
+
+
+    /**
+     * Test.
+     *
+     * @throws Exception If the test fails.
+     */
+    @Test
+    public void streamedBody() throws Exception {
+
+        // ARRANGE
+        listen("Transfer-Encoding", "chunked", true);
+
+        // ACT
+        final HttpResponse response =
+            _httpClient.execute(new HttpGet("http://localhost:4444/"));
+
+        // ASSERT
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals(_content, EntityUtils.toString(response.getEntity()));
+    }
+
+
+    private void listen(final String header,
+                        final String value,
+                        final boolean stream) {
+        _server.listen(
+            new InetSocketAddress(LOCALHOST, 4444),
+            new RequestFactory() {
+                @Override
+                public Request newInstance() {
+                    return new FileRequest(_file, header, value, stream);
+                }
+            });
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected NettyServer createServer() { return new NettyServer(); }
+
+
+    /**
+     * A request that responds with the contents of a file.
+     */
+    private static class FileRequest
+        implements
+            Request {
+
+        private final File _body;
+        private final String _header;
+        private final String _value;
+        private final boolean _stream;
+        private Response _response;
+
+        FileRequest(final File body,
+                    final String header,
+                    final String value,
+                    final boolean stream) {
+            _body = body;
+            _header = header;
+            _value = value;
+            _stream = stream;
+        }
+
+        @Override
+        public void onBegin(final Response response) { _response = response; }
+
+        @Override
+        public void onRequestLine(final String method,
+                                  final String uri,
+                                  final Version version) { /* No Op */ }
+
+        @Override
+        public void onHeaders(final Map<String, List<String>> headers) { /* No Op */ }
+
+        @Override
+        public void onBody(final ByteBuffer bytes) { /* No Op */ }
+
+        @Override
+        public void onEnd(final Map<String, List<String>> trailers) {
+            _response.writeStatusLine(new Version(1, 1), 200, "OK");
+            _response.writeHeaders(
+                Collections.singletonMap(
+                    _header, Collections.singletonList(_value)));
+            final ExtendedResponse response = (ExtendedResponse) _response;
+            try {
+                if (_stream) {
+                    response.writeBody(new FileInputStream(_body));
+                } else {
+                    response.writeBody(_body, 0, _body.length());
+                }
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
+            _response.writeEnd(null);
+        }
+    }
+}
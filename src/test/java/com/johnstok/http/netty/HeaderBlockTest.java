@@ -0,0 +1,154 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import static org.junit.Assert.*;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+import com.johnstok.http.Version;
+import com.johnstok.http.netty.test.FakeChannel;
+
+
+/**
+ * Tests for the {@link HeaderBlock}.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class HeaderBlockTest {
+
+    private final FakeChannel _channel = new FakeChannel();
+
+
+    /** Test. */
+    @Test
+    public void headersEncodedOnce() {
+
+        // ARRANGE
+        final Map<String, List<String>> headers =
+            new LinkedHashMap<String, List<String>>();
+        headers.put("Content-Type", Collections.singletonList("text/plain"));
+        headers.put("Server", Collections.singletonList("async-http"));
+
+        // ACT
+        final HeaderBlock block = new HeaderBlock(headers);
+
+        // ASSERT
+        assertEquals(
+            "Content-Type: text/plain\r\nServer: async-http\r\n",
+            block.getEncoded().toString("ASCII"));
+    }
+
+
+    /** Test. */
+    @Test
+    public void highCharactersEncodedAsSingleBytes() {
+
+        // ARRANGE
+        final Map<String, List<String>> headers =
+            Collections.singletonMap(
+                "X-Name", Collections.singletonList("caf\u00e9"));
+
+        // ACT
+        final HeaderBlock block = new HeaderBlock(headers);
+
+        // ASSERT
+        final ChannelBuffer encoded = block.getEncoded();
+        assertEquals("X-Name: caf\u00e9\r\n".length(), encoded.readableBytes());
+        assertEquals((byte) 0xe9, encoded.getByte(encoded.readerIndex()+11));
+    }
+
+
+    /** Test. */
+    @Test(expected=IllegalArgumentException.class)
+    public void framingHeaderRejected() {
+
+        // ARRANGE
+
+        // ACT
+        new HeaderBlock(header("Content-Length", "0"));
+    }
+
+
+    /** Test. */
+    @Test(expected=IllegalArgumentException.class)
+    public void invalidNameRejected() {
+
+        // ARRANGE
+
+        // ACT
+        new HeaderBlock(header("Content Type", "text/plain"));
+    }
+
+
+    /** Test. */
+    @Test(expected=IllegalArgumentException.class)
+    public void lineBreakInValueRejected() {
+
+        // ARRANGE
+
+        // ACT
+        new HeaderBlock(header("Server", "a\r\nX-Injected: b"));
+    }
+
+
+    /**
+     * Test.
+     *
+     * @throws Exception If the test fails.
+     */
+    @Test
+    public void blockSplicedIntoEncodedHead() throws Exception {
+
+        // ARRANGE
+        final HeaderBlock block =
+            new HeaderBlock(header("Content-Type", "text/plain"));
+        final NettyResponse response =
+            new NettyResponse(
+                new DefaultHttpResponse(
+                    HttpVersion.HTTP_1_1, HttpResponseStatus.OK),
+                _channel);
+        response.writeStatusLine(new Version(1, 1), 200, "OK");
+        response.writeHeaders(block, header("Content-Length", "0"));
+
+        // ACT
+        final ChannelBuffer encoded =
+            (ChannelBuffer) new NettyResponseEncoder().encode(
+                null, _channel, _channel.getWritten().get(0));
+
+        // ASSERT
+        final String head = encoded.toString("ASCII");
+        assertTrue(head.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue(head.contains("Content-Length: 0\r\n"));
+        assertTrue(head.endsWith("\r\nContent-Type: text/plain\r\n\r\n"));
+    }
+
+
+    private Map<String, List<String>> header(final String name,
+                                             final String value) {
+        return Collections.singletonMap(name, Collections.singletonList(value));
+    }
+}
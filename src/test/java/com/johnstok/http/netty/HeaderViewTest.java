@@ -0,0 +1,140 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import static org.junit.Assert.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+
+
+/**
+ * Tests for the {@link HeaderView}.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class HeaderViewTest {
+
+    private final HttpRequest _request =
+        new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+
+
+    /** Test. */
+    @Test
+    public void lookupIsCaseInsensitive() {
+
+        // ARRANGE
+        _request.addHeader("Content-Type", "text/plain");
+
+        // ACT
+        final Map<String, List<String>> headers = HeaderView.of(_request);
+
+        // ASSERT
+        assertTrue(headers.containsKey("content-type"));
+        assertEquals(Arrays.asList("text/plain"), headers.get("CONTENT-TYPE"));
+    }
+
+
+    /** Test. */
+    @Test
+    public void missingHeaderIsNull() {
+
+        // ARRANGE
+
+        // ACT
+        final Map<String, List<String>> headers = HeaderView.of(_request);
+
+        // ASSERT
+        assertNull(headers.get("Content-Type"));
+        assertFalse(headers.containsKey("Content-Type"));
+        assertTrue(headers.isEmpty());
+    }
+
+
+    /** Test. */
+    @Test
+    public void iterationListsEveryHeader() {
+
+        // ARRANGE
+        _request.addHeader("Accept", "text/html");
+        _request.addHeader("Accept", "text/plain");
+        _request.addHeader("Host", "localhost");
+
+        // ACT
+        final Map<String, List<String>> headers = HeaderView.of(_request);
+
+        // ASSERT
+        assertEquals(2, headers.size());
+        assertEquals(2, headers.entrySet().size());
+        assertEquals(
+            Arrays.asList("text/html", "text/plain"), headers.get("Accept"));
+    }
+
+
+    /** Test. */
+    @Test
+    public void namesReadOnce() {
+
+        // ARRANGE
+        _request.addHeader("Host", "localhost");
+        final AtomicInteger reads = new AtomicInteger();
+        final HeaderView headers = new HeaderView() {
+            @Override boolean contains(final String name) {
+                return _request.containsHeader(name);
+            }
+            @Override List<String> values(final String name) {
+                return _request.getHeaders(name);
+            }
+            @Override Set<String> readNames() {
+                reads.incrementAndGet();
+                return _request.getHeaderNames();
+            }
+        };
+
+        // ACT
+        headers.size();
+        headers.isEmpty();
+        for (final Map.Entry<String, List<String>> e : headers.entrySet()) {
+            e.getValue();
+        }
+
+        // ASSERT
+        assertEquals(1, reads.get());
+    }
+
+
+    /** Test. */
+    @Test(expected=UnsupportedOperationException.class)
+    public void viewIsReadOnly() {
+
+        // ARRANGE
+        final Map<String, List<String>> headers = HeaderView.of(_request);
+
+        // ACT
+        headers.put("Host", Arrays.asList("localhost"));
+    }
+}
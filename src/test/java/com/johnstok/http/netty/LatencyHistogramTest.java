@@ -0,0 +1,100 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+
+/**
+ * Tests for the {@link LatencyHistogram}.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class LatencyHistogramTest {
+
+    private final LatencyHistogram _histogram = new LatencyHistogram();
+
+
+    /** Test. */
+    @Test
+    public void smallValuesExact() {
+
+        // ARRANGE
+        for (int i=1; i<=4; i++) { _histogram.record(i); }
+
+        // ACT
+        final long median = _histogram.getPercentile(50);
+
+        // ASSERT
+        assertEquals(2, median);
+        assertEquals(4, _histogram.getMax());
+        assertEquals(4, _histogram.getCount());
+    }
+
+
+    /** Test. */
+    @Test
+    public void percentileWithinBucketPrecision() {
+
+        // ARRANGE
+        for (int i=1; i<=1000; i++) { _histogram.record(i*1000); }
+
+        // ACT
+        final long p99 = _histogram.getPercentile(99);
+
+        // ASSERT
+        assertTrue(p99>=990000);
+        assertTrue(p99<=990000*1.125);
+    }
+
+
+    /** Test. */
+    @Test
+    public void mergeAddsCounts() {
+
+        // ARRANGE
+        final LatencyHistogram other = new LatencyHistogram();
+        _histogram.record(10);
+        other.record(20000);
+
+        // ACT
+        _histogram.merge(other);
+
+        // ASSERT
+        assertEquals(2, _histogram.getCount());
+        assertEquals(20000, _histogram.getMax());
+        assertEquals(20000, _histogram.getPercentile(100));
+    }
+
+
+    /** Test. */
+    @Test
+    public void emptyHistogramReportsZero() {
+
+        // ARRANGE
+
+        // ACT
+        final long p50 = _histogram.getPercentile(50);
+
+        // ASSERT
+        assertEquals(0, p50);
+    }
+}
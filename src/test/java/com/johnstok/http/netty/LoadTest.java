@@ -0,0 +1,315 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import static org.junit.Assert.*;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import com.johnstok.http.Version;
+import com.johnstok.http.async.Request;
+import com.johnstok.http.async.RequestFactory;
+import com.johnstok.http.async.Response;
+import com.johnstok.http.netty.test.LoadGenerator;
+import com.johnstok.http.netty.test.LoadResult;
+
+
+/**
+ * Open-loop load tests for the Netty server.
+ * <p>These tests are slow so they only run when the 'loadtest' system
+ * property is true. Each scenario is run once per connection count and
+ * appends one line of JSON per run to 'target/load-reports/&lt;scenario&gt;.json'.
+ * The run can be tuned with the following system properties:
+ * <ul>
+ *   <li>loadtest.connections - comma separated connection counts
+ *       (default '10,100,1000');</li>
+ *   <li>loadtest.rate - requests scheduled per second (default 1000);</li>
+ *   <li>loadtest.seconds - seconds to schedule requests for (default 10);</li>
+ *   <li>loadtest.delay - response delay for the 'delayed' scenario, in
+ *       milliseconds (default 10).</li>
+ * </ul>
+ * Large connection counts will need a raised file descriptor limit.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class LoadTest extends AbstractServerTest<NettyServer> {
+
+    private static final File REPORTS = new File("target/load-reports"); //$NON-NLS-1$
+
+    private final int _rate = Integer.getInteger("loadtest.rate", 1000).intValue(); //$NON-NLS-1$
+    private final int _seconds = Integer.getInteger("loadtest.seconds", 10).intValue(); //$NON-NLS-1$
+    private final int _delay = Integer.getInteger("loadtest.delay", 10).intValue(); //$NON-NLS-1$
+
+
+    /** Set up. */
+    @Before
+    public void enabled() {
+        Assume.assumeTrue(Boolean.getBoolean("loadtest"));         //$NON-NLS-1$
+    }
+
+
+    /** Test. */
+    @Test
+    public void helloWorld() throws Exception {
+        run("hello-world",                                         //$NON-NLS-1$
+            new RequestFactory() {
+                @Override
+                public Request newInstance() { return new HelloRequest(); }
+            },
+            HttpMethod.GET,
+            null);
+    }
+
+
+    /** Test. */
+    @Test
+    public void echo() throws Exception {
+        run("echo",                                                //$NON-NLS-1$
+            new RequestFactory() {
+                @Override
+                public Request newInstance() {
+                    return new FixedLengthEchoRequest();
+                }
+            },
+            HttpMethod.POST,
+            "Hello, world!");                                     //$NON-NLS-1$
+    }
+
+
+    /** Test. */
+    @Test
+    public void delayed() throws Exception {
+        final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor();
+        try {
+            run("delayed",                                         //$NON-NLS-1$
+                new RequestFactory() {
+                    @Override
+                    public Request newInstance() {
+                        return new DelayedRequest(timer, _delay);
+                    }
+                },
+                HttpMethod.GET,
+                null);
+        } finally {
+            timer.shutdownNow();
+        }
+    }
+
+
+    private void run(final String scenario,
+                     final RequestFactory factory,
+                     final HttpMethod method,
+                     final String body) throws Exception {
+
+        final InetSocketAddress address = new InetSocketAddress(LOCALHOST, 4444);
+        _server.listen(address, factory);
+
+        for (final int connections : connectionCounts()) {
+
+            // ACT
+            final LoadResult result =
+                new LoadGenerator(address, method, "/", body)      //$NON-NLS-1$
+                    .run(connections, _rate, _seconds);
+            report(scenario, result.toJson(scenario));
+
+            // ASSERT
+            assertTrue(
+                "No responses for "+connections+" connections.",  //$NON-NLS-1$
+                result.getCompleted()>0);
+        }
+    }
+
+
+    private List<Integer> connectionCounts() {
+        final List<Integer> counts = new ArrayList<Integer>();
+        for (final String count
+             : System.getProperty("loadtest.connections", "10,100,1000").split(",")) { //$NON-NLS-1$
+            counts.add(Integer.valueOf(count.trim()));
+        }
+        return counts;
+    }
+
+
+    private void report(final String scenario,
+                        final String json) throws IOException {
+        REPORTS.mkdirs();
+        final Writer w =
+            new OutputStreamWriter(
+                new FileOutputStream(new File(REPORTS, scenario+".json"), true), //$NON-NLS-1$
+                CharsetUtil.UTF_8);
+        try {
+            w.write(json);
+            w.write('\n');
+        } finally {
+            w.close();
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected NettyServer createServer() { return new NettyServer(); }
+
+
+    /**
+     * A request that answers 'Hello, world!' with a declared length, so the
+     * connection is kept alive between requests.
+     */
+    private static final class HelloRequest
+        implements
+            Request {
+
+        private static final byte[] BODY =
+            "Hello, world!".getBytes(CharsetUtil.UTF_8);           //$NON-NLS-1$
+
+        private Response _response;
+
+        @Override
+        public void onBegin(final Response response) { _response = response; }
+
+        @Override
+        public void onRequestLine(final String method,
+                                  final String uri,
+                                  final Version version) {
+            _response.writeStatusLine(version, 200, "OK");         //$NON-NLS-1$
+        }
+
+        @Override
+        public void onHeaders(final Map<String, List<String>> headers) {
+            final Map<String, List<String>> responseHeaders =
+                new HashMap<String, List<String>>();
+            responseHeaders.put(
+                "Content-Type",                                    //$NON-NLS-1$
+                Collections.singletonList("text/plain"));          //$NON-NLS-1$
+            responseHeaders.put(
+                "Content-Length",                                  //$NON-NLS-1$
+                Collections.singletonList(String.valueOf(BODY.length)));
+            _response.writeHeaders(responseHeaders);
+        }
+
+        @Override
+        public void onBody(final ByteBuffer bytes) { /* No op */ }
+
+        @Override
+        public void onEnd(final Map<String, List<String>> trailers) {
+            _response.writeBody(ByteBuffer.wrap(BODY));
+            _response.writeEnd(null);
+        }
+    }
+
+
+    /**
+     * An echo request that declares the length of its response, so the
+     * connection is kept alive between requests.
+     */
+    private static final class FixedLengthEchoRequest
+        extends
+            EchoRequest {
+
+        @Override
+        public void onHeaders(final Map<String, List<String>> headers) {
+            final Map<String, List<String>> responseHeaders =
+                new HashMap<String, List<String>>();
+            responseHeaders.put(
+                "Content-Type",                                    //$NON-NLS-1$
+                headers.get("Content-Type"));                      //$NON-NLS-1$
+            responseHeaders.put(
+                "Content-Length",                                  //$NON-NLS-1$
+                headers.get("Content-Length"));                    //$NON-NLS-1$
+            _response.writeHeaders(responseHeaders);
+        }
+    }
+
+
+    /**
+     * A request that responds after a delay without blocking a thread.
+     */
+    private static final class DelayedRequest
+        implements
+            Request {
+
+        private static final byte[] BODY =
+            "Hello, world!".getBytes(CharsetUtil.UTF_8);           //$NON-NLS-1$
+
+        private final ScheduledExecutorService _timer;
+        private final int _delay;
+        private Response _response;
+
+        DelayedRequest(final ScheduledExecutorService timer, final int delay) {
+            _timer = timer;
+            _delay = delay;
+        }
+
+        @Override
+        public void onBegin(final Response response) { _response = response; }
+
+        @Override
+        public void onRequestLine(final String method,
+                                  final String uri,
+                                  final Version version) {
+            _response.writeStatusLine(version, 200, "OK");         //$NON-NLS-1$
+        }
+
+        @Override
+        public void onHeaders(final Map<String, List<String>> headers) {
+            final Map<String, List<String>> responseHeaders =
+                new HashMap<String, List<String>>();
+            responseHeaders.put(
+                "Content-Type",                                    //$NON-NLS-1$
+                Collections.singletonList("text/plain"));          //$NON-NLS-1$
+            responseHeaders.put(
+                "Content-Length",                                  //$NON-NLS-1$
+                Collections.singletonList(String.valueOf(BODY.length)));
+            _response.writeHeaders(responseHeaders);
+        }
+
+        @Override
+        public void onBody(final ByteBuffer bytes) { /* No op */ }
+
+        @Override
+        public void onEnd(final Map<String, List<String>> trailers) {
+            _timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    _response.writeBody(ByteBuffer.wrap(BODY));
+                    _response.writeEnd(null);
+                }
+            }, _delay, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -20,8 +20,25 @@
 package com.johnstok.http.netty;
 
 import static org.junit.Assert.*;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.management.ObjectName;
+import org.junit.Assume;
 import org.junit.Test;
+import com.johnstok.http.Version;
+import com.johnstok.http.async.Request;
+import com.johnstok.http.async.RequestFactory;
+import com.johnstok.http.client.SynchronousClient;
+import com.johnstok.http.netty.test.HelloWorldRequest;
 import com.johnstok.http.netty.test.SingletonRequestFactory;
 
 
@@ -109,6 +126,242 @@ public class NettyServerTest
     }
 
 
+    /** Test. */
+    @Test
+    public void requestCallbacksRunOnRequestThreads() {
+
+        // ARRANGE
+        final NettyServerConfig config = new NettyServerConfig();
+        config.setRequestThreadCount(2);
+        _server = new NettyServer(config);
+        final AtomicReference<String> threadName = new AtomicReference<String>();
+        _server.listen(
+            new InetSocketAddress(LOCALHOST, 4444),
+            new RequestFactory() {
+                @Override
+                public Request newInstance() {
+                    return new HelloWorldRequest() {
+                        @Override
+                        public void onRequestLine(final String method,
+                                                  final String uri,
+                                                  final Version version) {
+                            threadName.set(Thread.currentThread().getName());
+                        }
+                    };
+                }
+            });
+
+        // ACT
+        final String responseBody = SynchronousClient.get("/");
+
+        // ASSERT
+        assertEquals("Hello World!", responseBody);
+        assertTrue(threadName.get().startsWith("async-http-request-"));
+    }
+
+
+    /**
+     * Test.
+     *
+     * @throws Exception If the test fails.
+     */
+    @Test
+    public void requestCallbacksRunOnVirtualThreads() throws Exception {
+
+        // ARRANGE
+        Assume.assumeTrue(virtualThreadsSupported());
+        final NettyServerConfig config = new NettyServerConfig();
+        config.setVirtualThreads(true);
+        _server = new NettyServer(config);
+        final AtomicBoolean virtual = new AtomicBoolean();
+        _server.listen(
+            new InetSocketAddress(LOCALHOST, 4444),
+            new RequestFactory() {
+                @Override
+                public Request newInstance() {
+                    return new HelloWorldRequest() {
+                        @Override
+                        public void onRequestLine(final String method,
+                                                  final String uri,
+                                                  final Version version) {
+                            virtual.set(isVirtual(Thread.currentThread()));
+                        }
+                    };
+                }
+            });
+
+        // ACT
+        final String responseBody = SynchronousClient.get("/");
+
+        // ASSERT
+        assertEquals("Hello World!", responseBody);
+        assertTrue(virtual.get());
+    }
+
+
+    /** Test. */
+    @Test(expected=IllegalStateException.class)
+    public void virtualThreadsWithRequestThreadsRejected() {
+
+        // ARRANGE
+        final NettyServerConfig config = new NettyServerConfig();
+        config.setVirtualThreads(true);
+        config.setRequestThreadCount(2);
+        _server = new NettyServer(config);
+
+        // ACT
+        _server.listen(
+            new InetSocketAddress(LOCALHOST, 4444),
+            new SingletonRequestFactory(null));
+    }
+
+
+    /**
+     * Test.
+     *
+     * @throws Exception If the test fails.
+     */
+    @Test
+    public void metricsRecordedAndPublished() throws Exception {
+
+        // ARRANGE
+        _server.listen(
+            new InetSocketAddress(LOCALHOST, 4444),
+            new SingletonRequestFactory(new HelloWorldRequest()));
+        final ServerMetrics metrics = _server.getMetrics();
+
+        // ACT
+        SynchronousClient.get("/");
+        for (int i=0; i<50 && 0!=metrics.getRequestsInFlight(); i++) {
+            Thread.sleep(10);
+        }
+
+        // ASSERT
+        assertEquals(1, metrics.getRequestCount());
+        assertEquals(0, metrics.getRequestsInFlight());
+        assertEquals(1, metrics.getTotalConnections());
+        assertEquals(1, metrics.getLatencyHistogram().getCount());
+        assertTrue(metrics.getBytesIn()>0);
+        assertTrue(metrics.getBytesOut()>0);
+        assertTrue(
+            ManagementFactory.getPlatformMBeanServer().isRegistered(
+                new ObjectName(
+                    "com.johnstok.http.netty:type=NettyServer,address="
+                    + ObjectName.quote(
+                        new InetSocketAddress(LOCALHOST, 4444).toString()))));
+    }
+
+
+    /**
+     * Test.
+     *
+     * @throws Exception If the test fails.
+     */
+    @Test
+    public void closeDrainsRequestsInFlight() throws Exception {
+
+        // ARRANGE
+        final NettyServerConfig config = new NettyServerConfig();
+        config.setDrainTimeout(5000);
+        _server = new NettyServer(config);
+        _server.listen(
+            new InetSocketAddress(LOCALHOST, 4444),
+            new RequestFactory() {
+                @Override
+                public Request newInstance() {
+                    return new HelloWorldRequest() {
+                        @Override
+                        public void onEnd(final Map<String, List<String>> trailers) {
+                            new Thread() {
+                                @Override
+                                public void run() {
+                                    try {
+                                        Thread.sleep(300);
+                                    } catch (final InterruptedException e) {
+                                        return;
+                                    }
+                                    respond(trailers);
+                                }
+                            }.start();
+                        }
+
+                        void respond(final Map<String, List<String>> trailers) {
+                            super.onEnd(trailers);
+                        }
+                    };
+                }
+            });
+        final Socket socket = new Socket(LOCALHOST, 4444);
+        socket.setSoTimeout(5000);
+        socket.getOutputStream().write(
+            "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII")); //$NON-NLS-1$
+        final ServerMetrics metrics = _server.getMetrics();
+        for (int i=0; i<50 && 0==metrics.getRequestsInFlight(); i++) {
+            Thread.sleep(10);
+        }
+
+        // ACT
+        _server.close();
+
+        // ASSERT
+        final InputStream in = socket.getInputStream();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int b=in.read(); b!=-1; b=in.read()) { out.write(b); }
+        socket.close();
+        final String response = new String(out.toByteArray(), "US-ASCII"); //$NON-NLS-1$
+        assertTrue(response, response.startsWith("HTTP/1.1 200 OK"));
+        assertTrue(response, response.endsWith("Hello World!"));
+        assertEquals(0, metrics.getRequestsInFlight());
+        assertEquals(0, metrics.getFailedResponseCount());
+    }
+
+
+    /*
+     * Probed the way the server creates the executor: on JDK 19 and 20 the
+     * method exists but throws unless preview features are enabled.
+     */
+    private static boolean virtualThreadsSupported() {
+        try {
+            ((ExecutorService)
+                Executors.class
+                         .getMethod("newVirtualThreadPerTaskExecutor") //$NON-NLS-1$
+                         .invoke(null)).shutdown();
+            return true;
+        } catch (final Exception e) {
+            return false;
+        }
+    }
+
+
+    private static boolean isVirtual(final Thread thread) {
+        try {
+            return ((Boolean) Thread.class.getMethod("isVirtual") //$NON-NLS-1$
+                                          .invoke(thread)).booleanValue();
+        } catch (final Exception e) {
+            return false;
+        }
+    }
+
+
+    /** Test. */
+    @Test
+    public void invalidWorkerCountRejected() {
+
+        // ARRANGE
+        final NettyServerConfig config = new NettyServerConfig();
+
+        // ACT
+        try {
+            config.setWorkerCount(0);
+            fail();
+
+        // ASSERT
+        } catch (final IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+
     /** {@inheritDoc} */
     @Override
     protected NettyServer createServer() { return new NettyServer(); }
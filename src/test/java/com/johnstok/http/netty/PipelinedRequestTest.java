@@ -0,0 +1,153 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import static org.junit.Assert.*;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import com.johnstok.http.Version;
+import com.johnstok.http.async.Request;
+import com.johnstok.http.async.RequestFactory;
+import com.johnstok.http.async.Response;
+
+
+/**
+ * Tests for pipelined requests.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class PipelinedRequestTest
+    extends
+        AbstractServerTest<NettyServer> {
+
+
+    /**
+     * Test.
+     *
+     * @throws Exception If the test fails.
+     */
+    @Test
+    public void responsesWrittenInRequestOrder() throws Exception {
+
+        // ARRANGE
+        _server.listen(
+            new InetSocketAddress(LOCALHOST, 4444),
+            new RequestFactory() {
+                @Override
+                public Request newInstance() {
+                    return new UriRequest();
+                }
+            });
+
+        final Socket socket = new Socket(LOCALHOST, 4444);
+        socket.setSoTimeout(5000);
+        final OutputStream out = socket.getOutputStream();
+        final InputStream in = socket.getInputStream();
+
+        // ACT
+        out.write((
+            "GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\n"
+            + "GET /fast HTTP/1.1\r\nHost: localhost\r\n"
+            + "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+        out.flush();
+
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        for (int read=in.read(buffer); read>=0; read=in.read(buffer)) {
+            received.write(buffer, 0, read);
+        }
+        socket.close();
+
+        // ASSERT
+        final String responses = received.toString("US-ASCII");
+        assertTrue(responses.indexOf("/slow")>0);
+        assertTrue(responses.indexOf("/fast")>responses.indexOf("/slow"));
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected NettyServer createServer() { return new NettyServer(); }
+
+
+    /**
+     * A request that echoes its URI; '/slow' responds from another thread
+     * after a delay.
+     */
+    private static class UriRequest
+        implements
+            Request {
+
+        private Response _response;
+        private String _uri;
+
+        @Override
+        public void onBegin(final Response response) { _response = response; }
+
+        @Override
+        public void onRequestLine(final String method,
+                                  final String uri,
+                                  final Version version) { _uri = uri; }
+
+        @Override
+        public void onHeaders(final Map<String, List<String>> headers) { /* No Op */ }
+
+        @Override
+        public void onBody(final ByteBuffer bytes) { /* No Op */ }
+
+        @Override
+        public void onEnd(final Map<String, List<String>> trailers) {
+            if (!"/slow".equals(_uri)) { respond(); return; }
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(250);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    respond();
+                }
+            }.start();
+        }
+
+        private void respond() {
+            final byte[] body = _uri.getBytes();
+            final Map<String, List<String>> headers =
+                new HashMap<String, List<String>>();
+            headers.put(
+                "Content-Length",
+                Collections.singletonList(String.valueOf(body.length)));
+            _response.writeStatusLine(new Version(1, 1), 200, "OK");
+            _response.writeHeaders(headers);
+            _response.writeBody(ByteBuffer.wrap(body));
+            _response.writeEnd(null);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import static org.junit.Assert.*;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Test;
+
+
+/**
+ * Tests for the {@link PooledBufferFactory}.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class PooledBufferFactoryTest {
+
+    private final PooledBufferFactory _factory =
+        new PooledBufferFactory(false, 1024);
+
+
+    /** Test. */
+    @Test
+    public void smallBuffersShareAChunk() {
+
+        // ARRANGE
+
+        // ACT
+        final ChannelBuffer a = _factory.getBuffer(ByteOrder.BIG_ENDIAN, 10);
+        final ChannelBuffer b = _factory.getBuffer(ByteOrder.BIG_ENDIAN, 100);
+
+        // ASSERT
+        assertEquals(64, a.capacity());
+        assertEquals(128, b.capacity());
+        assertEquals(0, a.writerIndex());
+        assertEquals(1, _factory.getChunkCount());
+        assertEquals(2, _factory.getPooledAllocationCount());
+        assertEquals(192, _factory.getPooledBytes());
+    }
+
+
+    /** Test. */
+    @Test
+    public void slicesDoNotOverlap() {
+
+        // ARRANGE
+        final ChannelBuffer a = _factory.getBuffer(ByteOrder.BIG_ENDIAN, 64);
+        final ChannelBuffer b = _factory.getBuffer(ByteOrder.BIG_ENDIAN, 64);
+
+        // ACT
+        for (int i=0; i<64; i++) { a.writeByte(1); }
+        for (int i=0; i<64; i++) { b.writeByte(2); }
+
+        // ASSERT
+        for (int i=0; i<64; i++) { assertEquals(1, a.getByte(i)); }
+    }
+
+
+    /** Test. */
+    @Test
+    public void newChunkAllocatedWhenFull() {
+
+        // ARRANGE
+
+        // ACT
+        for (int i=0; i<9; i++) {
+            _factory.getBuffer(ByteOrder.BIG_ENDIAN, 128);
+        }
+
+        // ASSERT
+        assertEquals(2, _factory.getChunkCount());
+    }
+
+
+    /** Test. */
+    @Test
+    public void largeBuffersNotPooled() {
+
+        // ARRANGE
+
+        // ACT
+        final ChannelBuffer buffer =
+            _factory.getBuffer(ByteOrder.BIG_ENDIAN, 1000);
+
+        // ASSERT
+        assertEquals(1000, buffer.capacity());
+        assertEquals(0, _factory.getChunkCount());
+        assertEquals(1, _factory.getAllocationCount());
+        assertEquals(0, _factory.getPooledAllocationCount());
+    }
+
+
+    /**
+     * Test.
+     *
+     * @throws Exception If the test fails.
+     */
+    @Test
+    public void shortLivedThreadsShareChunks() throws Exception {
+
+        // ARRANGE
+        final PooledBufferFactory factory =
+            new PooledBufferFactory(false, 64*1024);
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i=0; i<500; i++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    factory.getBuffer(ByteOrder.BIG_ENDIAN, 64);
+                }
+            });
+        }
+
+        // ACT
+        for (final Thread thread : threads) {
+            thread.start();
+            thread.join();
+        }
+
+        // ASSERT
+        assertEquals(500, factory.getPooledAllocationCount());
+        assertTrue(factory.getChunkCount()<=factory.getArenaCount());
+    }
+
+
+    /** Test. */
+    @Test
+    public void releasedBufferReused() {
+
+        // ARRANGE
+        final ChannelBuffer a = _factory.getBuffer(ByteOrder.BIG_ENDIAN, 100);
+        a.writeByte(1);
+
+        // ACT
+        _factory.release(a);
+        final ChannelBuffer b = _factory.getBuffer(ByteOrder.BIG_ENDIAN, 70);
+
+        // ASSERT
+        assertSame(a, b);
+        assertEquals(0, b.writerIndex());
+        assertEquals(1, _factory.getReleaseCount());
+        assertEquals(1, _factory.getReuseCount());
+        assertEquals(128, _factory.getPooledBytes());
+    }
+
+
+    /** Test. */
+    @Test
+    public void unpooledBuffersNotReused() {
+
+        // ARRANGE
+        final ChannelBuffer large =
+            _factory.getBuffer(ByteOrder.BIG_ENDIAN, 1000);
+
+        // ACT
+        _factory.release(large);
+        _factory.getBuffer(ByteOrder.BIG_ENDIAN, 1000);
+
+        // ASSERT
+        assertEquals(0, _factory.getReleaseCount());
+        assertEquals(0, _factory.getReuseCount());
+    }
+
+
+    /** Test. */
+    @Test(expected=IllegalArgumentException.class)
+    public void tinyChunkSizeRejected() {
+
+        // ARRANGE
+
+        // ACT
+        new PooledBufferFactory(false, 16);
+    }
+}
@@ -0,0 +1,234 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import static org.junit.Assert.*;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Test;
+import com.johnstok.http.Version;
+import com.johnstok.http.async.Request;
+import com.johnstok.http.async.RequestFactory;
+import com.johnstok.http.async.Response;
+
+
+/**
+ * Tests for inflating compressed request bodies.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class RequestInflaterTest extends AbstractServerTest<NettyServer> {
+
+    private final NettyServerConfig _config = new NettyServerConfig();
+
+
+    /** Test. */
+    @Test
+    public void gzipBodyIsInflated() throws Exception {
+
+        // ARRANGE
+        listen();
+        final byte[] body = gzip("Hello, world!".getBytes(CharsetUtil.UTF_8)); //$NON-NLS-1$
+
+        // ACT
+        final String response = post("gzip", body);               //$NON-NLS-1$
+
+        // ASSERT
+        assertTrue(response, response.endsWith("\r\n\r\nHello, world!")); //$NON-NLS-1$
+    }
+
+
+    /** Test. */
+    @Test
+    public void deflateBodyIsInflated() throws Exception {
+
+        // ARRANGE
+        listen();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final OutputStream deflater = new DeflaterOutputStream(out);
+        deflater.write("Hello, world!".getBytes(CharsetUtil.UTF_8)); //$NON-NLS-1$
+        deflater.close();
+
+        // ACT
+        final String response = post("deflate", out.toByteArray()); //$NON-NLS-1$
+
+        // ASSERT
+        assertTrue(response, response.endsWith("\r\n\r\nHello, world!")); //$NON-NLS-1$
+    }
+
+
+    /** Test. */
+    @Test
+    public void excessiveExpansionClosesConnection() throws Exception {
+
+        // ARRANGE
+        _config.setMaxInflationRatio(2);
+        listen();
+        final byte[] body = gzip(new byte[1024*1024]);
+
+        // ACT
+        final String response = post("gzip", body);               //$NON-NLS-1$
+
+        // ASSERT
+        assertTrue(response.length()<1024*1024);
+    }
+
+
+    /**
+     * Test.
+     *
+     * @throws Exception If the test fails.
+     */
+    @Test
+    public void pausedRequestStopsInflation() throws Exception {
+
+        // ARRANGE
+        final AtomicLong received = new AtomicLong();
+        final AtomicLong receivedWhilePaused = new AtomicLong();
+        final Request request = new Request() {
+
+            private ExtendedResponse _response;
+
+            @Override
+            public void onBegin(final Response response) {
+                _response = (ExtendedResponse) response;
+            }
+
+            @Override
+            public void onRequestLine(final String method,
+                                      final String uri,
+                                      final Version version) {
+                /* No Op */
+            }
+
+            @Override
+            public void onHeaders(final Map<String, List<String>> headers) {
+                /* No Op */
+            }
+
+            @Override
+            public void onBody(final ByteBuffer bytes) {
+                if (0!=received.getAndAdd(bytes.remaining())) { return; }
+                _response.pauseBody();
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            Thread.sleep(250);
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        receivedWhilePaused.set(received.get());
+                        _response.resumeBody();
+                    }
+                }.start();
+            }
+
+            @Override
+            public void onEnd(final Map<String, List<String>> trailers) {
+                _response.writeStatusLine(new Version(1, 1), 200, "OK"); //$NON-NLS-1$
+                _response.writeHeaders(
+                    Collections.singletonMap(
+                        "Content-Length",                         //$NON-NLS-1$
+                        Collections.singletonList("0")));         //$NON-NLS-1$
+                _response.writeEnd(null);
+            }
+        };
+        _config.setMaxInflationRatio(10000);
+        _config.setRequestDecompression(true);
+        _server = new NettyServer(_config);
+        _server.listen(
+            new InetSocketAddress(LOCALHOST, 4444),
+            new RequestFactory() {
+                @Override
+                public Request newInstance() { return request; }
+            });
+        final byte[] body = gzip(new byte[1024*1024]);
+
+        // ACT
+        final String response = post("gzip", body);               //$NON-NLS-1$
+
+        // ASSERT
+        assertTrue(response, response.startsWith("HTTP/1.1 200 OK")); //$NON-NLS-1$
+        assertEquals(1024*1024, received.get());
+        assertTrue(receivedWhilePaused.get()<1024*1024);
+    }
+
+
+    private void listen() {
+        _config.setRequestDecompression(true);
+        _server = new NettyServer(_config);
+        _server.listen(
+            new InetSocketAddress(LOCALHOST, 4444),
+            new RequestFactory() {
+                @Override
+                public Request newInstance() { return new EchoRequest(); }
+            });
+    }
+
+
+    private static byte[] gzip(final byte[] bytes) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final OutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(bytes);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+
+    private static String post(final String coding,
+                               final byte[] body) throws Exception {
+        final Socket socket = new Socket(LOCALHOST, 4444);
+        socket.setSoTimeout(5000);
+        final OutputStream out = socket.getOutputStream();
+        out.write(
+            ("POST / HTTP/1.1\r\nHost: localhost\r\n"              //$NON-NLS-1$
+             + "Content-Type: text/plain\r\n"                      //$NON-NLS-1$
+             + "Content-Encoding: "+coding+"\r\n"                 //$NON-NLS-1$ //$NON-NLS-2$
+             + "Content-Length: "+body.length+"\r\n"              //$NON-NLS-1$ //$NON-NLS-2$
+             + "Connection: close\r\n\r\n").getBytes(CharsetUtil.US_ASCII)); //$NON-NLS-1$
+        out.write(body);
+
+        final InputStream in = socket.getInputStream();
+        final ByteArrayOutputStream response = new ByteArrayOutputStream();
+        try {
+            for (int b=in.read(); b!=-1; b=in.read()) { response.write(b); }
+        } finally {
+            socket.close();
+        }
+        return new String(response.toByteArray(), CharsetUtil.UTF_8);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected NettyServer createServer() { return new NettyServer(); }
+}
@@ -0,0 +1,111 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import static org.junit.Assert.*;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+import com.johnstok.http.Version;
+import com.johnstok.http.netty.test.FakeChannel;
+
+
+/**
+ * Tests for coalescing of response body writes.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class ResponseCoalescingTest {
+
+    private final FakeChannel _channel = new FakeChannel();
+
+
+    /** Test. */
+    @Test
+    public void smallWritesCoalescedUntilEnd() {
+
+        // ARRANGE
+        final NettyResponse response = createResponse();
+
+        // ACT
+        for (int i=0; i<100; i++) {
+            response.writeBody(ByteBuffer.wrap(new byte[] {(byte) i}));
+        }
+        response.writeEnd(null);
+
+        // ASSERT
+        final List<Object> written = _channel.getWritten();
+        assertEquals(3, written.size());                 // Head, body, end.
+        assertEquals(100, ((HttpChunk) written.get(1)).getContent().readableBytes());
+        assertTrue(((HttpChunk) written.get(2)).isLast());
+    }
+
+
+    /** Test. */
+    @Test
+    public void flushWritesBufferedData() {
+
+        // ARRANGE
+        final NettyResponse response = createResponse();
+        response.writeBody(ByteBuffer.wrap(new byte[] {1}));
+
+        // ACT
+        response.flush();
+
+        // ASSERT
+        assertEquals(2, _channel.getWritten().size());
+    }
+
+
+    /** Test. */
+    @Test
+    public void largeWriteSentWithoutCopy() {
+
+        // ARRANGE
+        final NettyResponse response = createResponse();
+        final byte[] body = new byte[64*1024];
+
+        // ACT
+        response.writeBody(ByteBuffer.wrap(body));
+
+        // ASSERT
+        final HttpChunk chunk = (HttpChunk) _channel.getWritten().get(1);
+        assertSame(body, chunk.getContent().array());
+    }
+
+
+    private NettyResponse createResponse() {
+        final NettyResponse response =
+            new NettyResponse(
+                new DefaultHttpResponse(
+                    HttpVersion.HTTP_1_1, HttpResponseStatus.OK),
+                _channel);
+        response.writeStatusLine(new Version(1, 1), 200, "OK");
+        response.writeHeaders(
+            Collections.singletonMap(
+                "Transfer-Encoding", Collections.singletonList("chunked")));
+        return response;
+    }
+}
@@ -21,8 +21,16 @@ package com.johnstok.http.netty;
 
 import static org.junit.Assert.*;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.params.ClientPNames;
 import org.apache.http.client.protocol.RequestClientConnControl;
@@ -34,8 +42,11 @@ import org.apache.http.util.EntityUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import com.johnstok.http.Version;
+import com.johnstok.http.async.Connection;
 import com.johnstok.http.async.Request;
 import com.johnstok.http.async.RequestFactory;
+import com.johnstok.http.async.Response;
 import com.johnstok.http.client.SynchronousClient;
 import com.johnstok.http.netty.test.HelloWorldRequestFactory;
 import com.johnstok.http.netty.test.SingletonRequestFactory;
@@ -126,6 +137,80 @@ public class SimpleRequestTest
     }
 
 
+    /**
+     * Test.
+     *
+     * @throws Exception If the test fails.
+     */
+    @Test
+    public void keepAliveConnectionReused() throws Exception {
+
+        // ARRANGE
+        final AtomicInteger opened = new AtomicInteger();
+        _server.listen(
+            new InetSocketAddress(LOCALHOST, 4444),
+            new RequestFactory() {
+                @Override
+                public Request newInstance() {
+                    return new FixedLengthRequest("Hello");
+                }
+            },
+            new Connection() {
+                @Override
+                public void onOpen() { opened.incrementAndGet(); }
+            });
+        final DefaultHttpClient keepAliveClient = new DefaultHttpClient();
+
+        // ACT
+        try {
+            for (int i=0; i<3; i++) {
+                final HttpResponse response =
+                    keepAliveClient.execute(new HttpGet("http://localhost:4444/"));
+                assertEquals("Hello", EntityUtils.toString(response.getEntity()));
+            }
+        } finally {
+            keepAliveClient.getConnectionManager().shutdown();
+        }
+
+        // ASSERT
+        assertEquals(1, opened.get());
+    }
+
+
+    /**
+     * Test.
+     *
+     * @throws Exception If the test fails.
+     */
+    @Test
+    public void keepAliveAnnouncedToHttp10Client() throws Exception {
+
+        // ARRANGE
+        _server.listen(
+            new InetSocketAddress(LOCALHOST, 4444),
+            new RequestFactory() {
+                @Override
+                public Request newInstance() {
+                    return new FixedLengthRequest("Hello");
+                }
+            });
+        final HttpGet httpGet = new HttpGet("http://localhost:4444/");
+        httpGet.getParams().setParameter(
+            CoreProtocolPNames.PROTOCOL_VERSION, HttpVersion.HTTP_1_0);
+        httpGet.setHeader("Connection", "Keep-Alive");
+
+        // ACT
+        final HttpResponse response = _httpClient.execute(httpGet);
+
+        // ASSERT
+        assertEquals(
+            HttpVersion.HTTP_1_0, response.getStatusLine().getProtocolVersion());
+        assertEquals(
+            "keep-alive", response.getFirstHeader("Connection").getValue());
+        assertEquals("Hello", EntityUtils.toString(response.getEntity()));
+    }
+
+
     /** Test. */
     @Test
     public void simpleGet() {
@@ -162,4 +247,48 @@ public class SimpleRequestTest
     /** {@inheritDoc} */
     @Override
     protected NettyServer createServer() { return new NettyServer(); }
+
+
+    /**
+     * A request that responds with a fixed length body.
+     */
+    private static class FixedLengthRequest
+        implements
+            Request {
+
+        private final byte[] _body;
+        private Response _response;
+        private Version _version;
+
+        FixedLengthRequest(final String body) { _body = body.getBytes(); }
+
+        @Override
+        public void onBegin(final Response response) { _response = response; }
+
+        @Override
+        public void onRequestLine(final String method,
+                                  final String uri,
+                                  final Version version) {
+            _version = version;
+        }
+
+        @Override
+        public void onHeaders(final Map<String, List<String>> headers) { /* No Op */ }
+
+        @Override
+        public void onBody(final ByteBuffer bytes) { /* No Op */ }
+
+        @Override
+        public void onEnd(final Map<String, List<String>> trailers) {
+            final Map<String, List<String>> headers =
+                new HashMap<String, List<String>>();
+            headers.put(
+                "Content-Length",
+                Collections.singletonList(String.valueOf(_body.length)));
+            _response.writeStatusLine(_version, 200, "OK");
+            _response.writeHeaders(headers);
+            _response.writeBody(ByteBuffer.wrap(_body));
+            _response.writeEnd(null);
+        }
+    }
 }
@@ -0,0 +1,95 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import static org.junit.Assert.*;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+import com.johnstok.http.Version;
+
+
+/**
+ * Tests for the {@link StatusLines}.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class StatusLinesTest {
+
+
+    /** Test. */
+    @Test
+    public void standardStatusShared() {
+
+        // ARRANGE
+
+        // ACT
+        final HttpResponseStatus status = StatusLines.status(404, "Not Found");
+
+        // ASSERT
+        assertSame(HttpResponseStatus.NOT_FOUND, status);
+    }
+
+
+    /** Test. */
+    @Test
+    public void customReasonNotShared() {
+
+        // ARRANGE
+
+        // ACT
+        final HttpResponseStatus status = StatusLines.status(200, "Fine");
+
+        // ASSERT
+        assertNotSame(HttpResponseStatus.OK, status);
+        assertEquals("Fine", status.getReasonPhrase());
+        assertNull(StatusLines.encoded(HttpVersion.HTTP_1_1, status));
+    }
+
+
+    /** Test. */
+    @Test
+    public void standardVersionShared() {
+
+        // ARRANGE
+
+        // ACT
+        final HttpVersion version = StatusLines.version(new Version(1, 0));
+
+        // ASSERT
+        assertSame(HttpVersion.HTTP_1_0, version);
+    }
+
+
+    /** Test. */
+    @Test
+    public void standardStatusLinePreEncoded() {
+
+        // ARRANGE
+
+        // ACT
+        final String line =
+            StatusLines.encoded(HttpVersion.HTTP_1_1, HttpResponseStatus.OK)
+                       .toString("ASCII");
+
+        // ASSERT
+        assertEquals("HTTP/1.1 200 OK\r\n", line);
+    }
+}
@@ -0,0 +1,161 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import static org.junit.Assert.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import org.junit.Test;
+
+
+/**
+ * Tests for the {@link ThrottledLog} and {@link AsyncLogHandler}.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class ThrottledLogTest {
+
+    private final RecordingHandler _handler = new RecordingHandler();
+    private final Logger _logger = Logger.getAnonymousLogger();
+    {
+        _logger.setUseParentHandlers(false);
+        _logger.addHandler(_handler);
+    }
+
+
+    /** Test. */
+    @Test
+    public void repeatedExceptionsSuppressed() {
+
+        // ARRANGE
+        final ThrottledLog log = new ThrottledLog(_logger, 60000);
+
+        // ACT
+        for (int i=0; i<5; i++) {
+            log.log(Level.WARNING, "Failed", new IOException());
+        }
+
+        // ASSERT
+        assertEquals(1, _handler.getRecords().size());
+        assertEquals(4, log.getSuppressedCount());
+    }
+
+
+    /** Test. */
+    @Test
+    public void suppressedCountReportedWithNextTrace() {
+
+        // ARRANGE
+        final ThrottledLog log = new ThrottledLog(_logger, 0);
+
+        // ACT
+        log.log(Level.WARNING, "Failed", new IOException());
+        log.log(Level.WARNING, "Failed", new IOException());
+
+        // ASSERT
+        assertEquals(2, _handler.getRecords().size());
+        assertEquals(0, log.getSuppressedCount());
+    }
+
+
+    /** Test. */
+    @Test
+    public void eachExceptionTypeLogged() {
+
+        // ARRANGE
+        final ThrottledLog log = new ThrottledLog(_logger, 60000);
+
+        // ACT
+        log.log(Level.WARNING, "Failed", new IOException());
+        log.log(Level.WARNING, "Failed", new IllegalStateException());
+
+        // ASSERT
+        assertEquals(2, _handler.getRecords().size());
+    }
+
+
+    /** Test. */
+    @Test
+    public void asyncHandlerPublishesOnFlush() {
+
+        // ARRANGE
+        final AsyncLogHandler async = new AsyncLogHandler(16, _handler);
+
+        // ACT
+        for (int i=0; i<10; i++) {
+            async.publish(new LogRecord(Level.INFO, "message "+i));
+        }
+        async.flush();
+
+        // ASSERT
+        assertEquals(10, _handler.getRecords().size());
+        assertEquals("message 9", _handler.getRecords().get(9).getMessage());
+        assertEquals(0, async.getDroppedCount());
+        async.close();
+    }
+
+
+    /** Test. */
+    @Test
+    public void asyncHandlerDropsWhenClosed() {
+
+        // ARRANGE
+        final AsyncLogHandler async = new AsyncLogHandler(16, _handler);
+        async.close();
+
+        // ACT
+        async.publish(new LogRecord(Level.INFO, "message"));
+
+        // ASSERT
+        assertEquals(0, _handler.getRecords().size());
+        assertEquals(1, async.getDroppedCount());
+    }
+
+
+    /**
+     * A handler that records what it publishes.
+     */
+    private static final class RecordingHandler
+        extends
+            Handler {
+
+        private final List<LogRecord> _records = new ArrayList<LogRecord>();
+
+        synchronized List<LogRecord> getRecords() {
+            return new ArrayList<LogRecord>(_records);
+        }
+
+        @Override
+        public synchronized void publish(final LogRecord record) {
+            _records.add(record);
+        }
+
+        @Override
+        public void flush() { /* No Op */ }
+
+        @Override
+        public void close() { /* No Op */ }
+    }
+}
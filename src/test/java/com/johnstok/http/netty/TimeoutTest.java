@@ -0,0 +1,124 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty;
+
+import static org.junit.Assert.*;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Test;
+import com.johnstok.http.netty.test.HelloWorldRequestFactory;
+
+
+/**
+ * Tests for connection timeouts.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class TimeoutTest extends AbstractServerTest<NettyServer> {
+
+    private final NettyServerConfig _config = new NettyServerConfig();
+
+
+    /** Test. */
+    @Test
+    public void idleConnectionIsClosed() throws Exception {
+
+        // ARRANGE
+        _config.setIdleTimeout(200);
+        _server = new NettyServer(_config);
+        _server.listen(
+            new InetSocketAddress(LOCALHOST, 4444),
+            new HelloWorldRequestFactory());
+        final Socket socket = new Socket(LOCALHOST, 4444);
+        socket.setSoTimeout(5000);
+
+        // ACT
+        final String response = readAll(socket);
+
+        // ASSERT
+        assertEquals("", response);                               //$NON-NLS-1$
+    }
+
+
+    /** Test. */
+    @Test
+    public void incompleteHeadersAreAnswered() throws Exception {
+
+        // ARRANGE
+        _config.setHeaderTimeout(200);
+        _server = new NettyServer(_config);
+        _server.listen(
+            new InetSocketAddress(LOCALHOST, 4444),
+            new HelloWorldRequestFactory());
+        final Socket socket = new Socket(LOCALHOST, 4444);
+        socket.setSoTimeout(5000);
+
+        // ACT
+        socket.getOutputStream().write(
+            "GET / HTTP/1.1\r\nHost: localhost\r\n".getBytes(CharsetUtil.US_ASCII)); //$NON-NLS-1$
+        final String response = readAll(socket);
+
+        // ASSERT
+        assertTrue(
+            response,
+            response.startsWith("HTTP/1.1 408 Request Timeout\r\n")); //$NON-NLS-1$
+    }
+
+
+    /** Test. */
+    @Test
+    public void disabledTimeoutsLeaveConnectionOpen() throws Exception {
+
+        // ARRANGE
+        _config.setIdleTimeout(0);
+        _config.setHeaderTimeout(0);
+        _config.setBodyTimeout(0);
+        _config.setWriteTimeout(0);
+        _server = new NettyServer(_config);
+        _server.listen(
+            new InetSocketAddress(LOCALHOST, 4444),
+            new HelloWorldRequestFactory());
+        final Socket socket = new Socket(LOCALHOST, 4444);
+
+        // ACT
+        Thread.sleep(300);
+
+        // ASSERT
+        assertEquals(1, _server.getConnectionCount());
+        socket.close();
+    }
+
+
+    private String readAll(final Socket socket) throws Exception {
+        final InputStream in = socket.getInputStream();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int b=in.read(); b!=-1; b=in.read()) { out.write(b); }
+        socket.close();
+        return new String(out.toByteArray(), CharsetUtil.US_ASCII);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected NettyServer createServer() { return new NettyServer(); }
+}
@@ -21,17 +21,23 @@ package com.johnstok.http.netty.test;
 
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelConfig;
 import org.jboss.netty.channel.ChannelFactory;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DefaultChannelConfig;
 import org.jboss.netty.channel.DefaultChannelPipeline;
 
 public class FakeChannel implements Channel {
 
     InetSocketAddress _localAddress =
         InetSocketAddress.createUnresolved("localhost", 80);
+    private final ChannelConfig _config = new DefaultChannelConfig();
+    private final List<Object> _written = new ArrayList<Object>();
 
     public FakeChannel() { super(); }
 
@@ -62,7 +68,7 @@ public class FakeChannel implements Channel {
     /** {@inheritDoc} */
     @Override
     public ChannelConfig getConfig() {
-        throw new UnsupportedOperationException("Method not implemented.");
+        return _config;
     }
 
     /** {@inheritDoc} */
@@ -74,7 +80,7 @@ public class FakeChannel implements Channel {
     /** {@inheritDoc} */
     @Override
     public boolean isOpen() {
-        throw new UnsupportedOperationException("Method not implemented.");
+        return true;
     }
 
     /** {@inheritDoc} */
@@ -104,7 +110,8 @@ public class FakeChannel implements Channel {
     /** {@inheritDoc} */
     @Override
     public ChannelFuture write(final Object message) {
-        return null;
+        _written.add(message);
+        return Channels.succeededFuture(this);
     }
 
     /** {@inheritDoc} */
@@ -140,7 +147,7 @@ public class FakeChannel implements Channel {
     /** {@inheritDoc} */
     @Override
     public ChannelFuture close() {
-        throw new UnsupportedOperationException("Method not implemented.");
+        return Channels.succeededFuture(this);
     }
 
     /** {@inheritDoc} */
@@ -164,7 +171,7 @@ public class FakeChannel implements Channel {
     /** {@inheritDoc} */
     @Override
     public boolean isWritable() {
-        throw new UnsupportedOperationException("Method not implemented.");
+        return true;
     }
 
     /** {@inheritDoc} */
@@ -179,4 +186,13 @@ public class FakeChannel implements Channel {
         throw new UnsupportedOperationException("Method not implemented.");
     }
 
-}
\ No newline at end of file
+
+    /**
+     * Accessor.
+     *
+     * @return The messages written to this channel, in order.
+     */
+    public List<Object> getWritten() {
+        return _written;
+    }
+}
@@ -0,0 +1,309 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty.test;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
+import org.jboss.netty.handler.codec.http.HttpClientCodec;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.util.CharsetUtil;
+import com.johnstok.http.netty.LatencyHistogram;
+
+
+/**
+ * An open-loop HTTP load generator.
+ * <p>Requests are scheduled at a fixed rate, regardless of how quickly the
+ * server responds. A scheduled request is sent on the next idle connection;
+ * if none is idle it waits. Latency is measured from the time the request
+ * was scheduled, not the time it was sent, so time spent waiting behind a
+ * slow response is counted (correcting for coordinated omission).
+ * Requests still unanswered when the run ends are recorded with their
+ * latency so far and reported as timed out, so the slowest samples are not
+ * dropped.
+ * <p>Connections the server closes are replaced.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class LoadGenerator {
+
+    private final InetSocketAddress _address;
+    private final HttpMethod _method;
+    private final String _uri;
+    private final byte[] _body;
+    private final Object _lock = new Object();
+    private final LinkedList<Long> _pending = new LinkedList<Long>();
+    private final LinkedList<Channel> _idle = new LinkedList<Channel>();
+    private final DefaultChannelGroup _channels = new DefaultChannelGroup();
+    private final LatencyHistogram _latency = new LatencyHistogram();
+    private final AtomicLong _completed = new AtomicLong();
+    private final AtomicLong _errors = new AtomicLong();
+    private ClientBootstrap _bootstrap;
+    private CountDownLatch _done;
+    private volatile boolean _stopping;
+
+
+    /**
+     * Constructor.
+     *
+     * @param address The server's address.
+     * @param method  The method of each request.
+     * @param uri     The URI of each request.
+     * @param body    The body of each request; NULL for no body.
+     */
+    public LoadGenerator(final InetSocketAddress address,
+                         final HttpMethod method,
+                         final String uri,
+                         final String body) {
+        _address = address;
+        _method = method;
+        _uri = uri;
+        _body = (null==body) ? null : body.getBytes(CharsetUtil.UTF_8);
+    }
+
+
+    /**
+     * Run a load test.
+     *
+     * @param connections       The number of connections to open.
+     * @param requestsPerSecond The rate at which requests are scheduled.
+     * @param seconds           The number of seconds to schedule requests
+     *  for.
+     *
+     * @return The results.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public LoadResult run(final int connections,
+                          final int requestsPerSecond,
+                          final int seconds) throws InterruptedException {
+        final int total = requestsPerSecond*seconds;
+        _done = new CountDownLatch(total);
+        _bootstrap =
+            new ClientBootstrap(
+                new NioClientSocketChannelFactory(
+                    Executors.newCachedThreadPool(),
+                    Executors.newCachedThreadPool()));
+        _bootstrap.setOption("tcpNoDelay", Boolean.TRUE);
+        _bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() {
+                return Channels.pipeline(
+                    new HttpClientCodec(),
+                    new HttpChunkAggregator(1024*1024),
+                    new ClientHandler());
+            }
+        });
+
+        try {
+            for (int i=0; i<connections; i++) { connect(); }
+
+            final long interval = TimeUnit.SECONDS.toNanos(1)/requestsPerSecond;
+            final long start = System.nanoTime();
+            for (int i=0; i<total; i++) {
+                final long intended = start+i*interval;
+                final long delay = intended-System.nanoTime();
+                if (delay>0) { LockSupport.parkNanos(delay); }
+                schedule(intended);
+            }
+            _done.await(seconds+30, TimeUnit.SECONDS);
+            final long now = System.nanoTime();
+            final long elapsed = now-start;
+            final long timedOut = recordUnanswered(now);
+
+            return
+                new LoadResult(
+                    connections,
+                    requestsPerSecond,
+                    total,
+                    _completed.get(),
+                    _errors.get(),
+                    timedOut,
+                    elapsed,
+                    _latency.copy());
+        } finally {
+            _stopping = true;
+            _channels.close().awaitUninterruptibly();
+            _bootstrap.releaseExternalResources();
+        }
+    }
+
+
+    /*
+     * Record the requests still waiting for a connection or a response.
+     */
+    private long recordUnanswered(final long now) {
+        long unanswered = 0;
+        synchronized (_lock) {
+            for (final Long intended : _pending) {
+                _latency.record((now-intended.longValue())/1000);
+                unanswered++;
+            }
+            _pending.clear();
+        }
+        for (final Channel channel : _channels) {
+            final ClientHandler handler =
+                channel.getPipeline().get(ClientHandler.class);
+            final long intended = (null==handler) ? -1 : handler.take();
+            if (intended<0) { continue; }
+            _latency.record((now-intended)/1000);
+            unanswered++;
+        }
+        return unanswered;
+    }
+
+
+    private void connect() {
+        if (_stopping) { return; }
+        _bootstrap.connect(_address).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(final ChannelFuture future) {
+                if (future.isSuccess()) {
+                    _channels.add(future.getChannel());
+                    release(future.getChannel());
+                } else if (!_stopping) {
+                    _errors.incrementAndGet();
+                    connect();
+                }
+            }
+        });
+    }
+
+
+    private void schedule(final long intended) {
+        final Channel channel;
+        synchronized (_lock) {
+            channel = _idle.poll();
+            if (null==channel) {
+                _pending.add(Long.valueOf(intended));
+                return;
+            }
+        }
+        send(channel, intended);
+    }
+
+
+    private void release(final Channel channel) {
+        final Long intended;
+        synchronized (_lock) {
+            intended = _pending.poll();
+            if (null==intended) {
+                _idle.add(channel);
+                return;
+            }
+        }
+        send(channel, intended.longValue());
+    }
+
+
+    private void send(final Channel channel, final long intended) {
+        channel.getPipeline().get(ClientHandler.class).expect(intended);
+        final HttpRequest request =
+            new DefaultHttpRequest(HttpVersion.HTTP_1_1, _method, _uri);
+        request.setHeader(HttpHeaders.Names.HOST, _address.getHostName());
+        if (null!=_body) {
+            request.setHeader(HttpHeaders.Names.CONTENT_TYPE, "text/plain");
+            request.setHeader(
+                HttpHeaders.Names.CONTENT_LENGTH,
+                String.valueOf(_body.length));
+            request.setContent(ChannelBuffers.wrappedBuffer(_body));
+        }
+        channel.write(request);
+    }
+
+
+    /**
+     * Records the response to the request in flight on a connection.
+     */
+    private final class ClientHandler
+        extends
+            SimpleChannelUpstreamHandler {
+
+        private long _intended = -1;
+
+        synchronized void expect(final long intended) {
+            _intended = intended;
+        }
+
+        private synchronized long take() {
+            final long intended = _intended;
+            _intended = -1;
+            return intended;
+        }
+
+        @Override
+        public void messageReceived(final ChannelHandlerContext ctx,
+                                    final MessageEvent e) {
+            final long intended = take();
+            if (intended<0) { return; }
+            _latency.record((System.nanoTime()-intended)/1000);
+            _completed.incrementAndGet();
+            _done.countDown();
+            if (HttpHeaders.isKeepAlive((HttpResponse) e.getMessage())) {
+                release(ctx.getChannel());
+            } else {
+                ctx.getChannel().close();
+            }
+        }
+
+        @Override
+        public void channelClosed(final ChannelHandlerContext ctx,
+                                  final ChannelStateEvent e) {
+            synchronized (_lock) { _idle.remove(ctx.getChannel()); }
+            final long intended = take();
+            if (intended>=0) {                 // Request lost with connection.
+                _errors.incrementAndGet();
+                _done.countDown();
+            }
+            connect();
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx,
+                                    final ExceptionEvent e) {
+            ctx.getChannel().close();
+        }
+    }
+}
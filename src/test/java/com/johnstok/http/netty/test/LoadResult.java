@@ -0,0 +1,146 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2011 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of async-http-netty.
+ *
+ * async-http-netty is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * async-http-netty is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with async-http-netty. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.http.netty.test;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import com.johnstok.http.netty.LatencyHistogram;
+
+
+/**
+ * The results of a single load generator run.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class LoadResult {
+
+    private final int _connections;
+    private final int _offeredRate;
+    private final long _scheduled;
+    private final long _completed;
+    private final long _errors;
+    private final long _timedOut;
+    private final long _elapsedNanos;
+    private final LatencyHistogram _latency;
+
+
+    /**
+     * Constructor.
+     *
+     * @param connections  The number of connections used.
+     * @param offeredRate  The rate requests were scheduled at, per second.
+     * @param scheduled    The number of requests scheduled.
+     * @param completed    The number of responses received.
+     * @param errors       The number of failed requests and connections.
+     * @param timedOut     The number of requests unanswered when the run
+     *  ended; their latencies are recorded up to that time.
+     * @param elapsedNanos The duration of the run.
+     * @param latency      Response latencies, in microseconds.
+     */
+    public LoadResult(final int connections,
+                      final int offeredRate,
+                      final long scheduled,
+                      final long completed,
+                      final long errors,
+                      final long timedOut,
+                      final long elapsedNanos,
+                      final LatencyHistogram latency) {
+        _connections = connections;
+        _offeredRate = offeredRate;
+        _scheduled = scheduled;
+        _completed = completed;
+        _errors = errors;
+        _timedOut = timedOut;
+        _elapsedNanos = elapsedNanos;
+        _latency = latency;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The number of responses received.
+     */
+    public long getCompleted() { return _completed; }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The number of failed requests and connections.
+     */
+    public long getErrors() { return _errors; }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The number of requests unanswered when the run ended.
+     */
+    public long getTimedOut() { return _timedOut; }
+
+
+    /**
+     * Accessor.
+     *
+     * @return The achieved throughput, in responses per second.
+     */
+    public double getThroughput() {
+        return _completed*(double) TimeUnit.SECONDS.toNanos(1)/_elapsedNanos;
+    }
+
+
+    /**
+     * Accessor.
+     *
+     * @return Response latencies, in microseconds.
+     */
+    public LatencyHistogram getLatency() { return _latency; }
+
+
+    /**
+     * Format the result as a single line of JSON.
+     *
+     * @param scenario The name of the scenario that was run.
+     *
+     * @return The JSON representation of the result.
+     */
+    public String toJson(final String scenario) {
+        return String.format(
+            Locale.ROOT,
+            "{\"scenario\":\"%s\",\"connections\":%d,\"offeredRate\":%d,"  //$NON-NLS-1$
+            + "\"scheduled\":%d,\"completed\":%d,\"errors\":%d,\"timedOut\":%d," //$NON-NLS-1$
+            + "\"elapsedMillis\":%d,\"throughput\":%.1f,"                   //$NON-NLS-1$
+            + "\"latencyMicros\":{\"p50\":%d,\"p99\":%d,\"p999\":%d,\"max\":%d}}", //$NON-NLS-1$
+            scenario,
+            Integer.valueOf(_connections),
+            Integer.valueOf(_offeredRate),
+            Long.valueOf(_scheduled),
+            Long.valueOf(_completed),
+            Long.valueOf(_errors),
+            Long.valueOf(_timedOut),
+            Long.valueOf(TimeUnit.NANOSECONDS.toMillis(_elapsedNanos)),
+            Double.valueOf(getThroughput()),
+            Long.valueOf(_latency.getPercentile(50)),
+            Long.valueOf(_latency.getPercentile(99)),
+            Long.valueOf(_latency.getPercentile(99.9)),
+            Long.valueOf(_latency.getMax()));
+    }
+}